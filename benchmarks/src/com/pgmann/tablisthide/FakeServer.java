@@ -0,0 +1,462 @@
+/*
+ * TabListHide - Hide or show players in the tab player list
+ * Copyright (C) 2017 pgmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.pgmann.tablisthide;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import org.bukkit.Bukkit;
+import org.bukkit.GameMode;
+import org.bukkit.Server;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitScheduler;
+import org.bukkit.scheduler.BukkitTask;
+
+import com.comphenix.protocol.PacketType;
+import com.comphenix.protocol.ProtocolManager;
+import com.comphenix.protocol.events.PacketContainer;
+import com.comphenix.protocol.events.PacketEvent;
+import com.comphenix.protocol.events.PacketListener;
+import com.comphenix.protocol.utility.MinecraftReflection;
+import com.comphenix.protocol.wrappers.EnumWrappers.NativeGameMode;
+import com.comphenix.protocol.wrappers.EnumWrappers.PlayerInfoAction;
+import com.comphenix.protocol.wrappers.PlayerInfoData;
+import com.comphenix.protocol.wrappers.WrappedChatComponent;
+import com.comphenix.protocol.wrappers.WrappedGameProfile;
+
+/**
+ * A Bukkit server with nothing behind it, for driving TabListHide outside Minecraft.
+ * <p>
+ * Players are proxies which only know their name, UUID and game mode. Packets go to a protocol manager
+ * which runs the registered listeners and counts what would have reached each client. Scheduled tasks
+ * run when {@link #tick()} is called. The server classes must be on the classpath, as ProtocolLib still
+ * builds real packets.
+ *
+ * @author pgmann
+ */
+public class FakeServer {
+	// The server version the spigot dependency was built for
+	private static final String NMS_PACKAGE = "net.minecraft.server.v1_8_R2";
+	private static final String OBC_PACKAGE = "org.bukkit.craftbukkit.v1_8_R2";
+
+	// Bukkit only accepts one server per JVM, so it forwards to whichever fake server is current
+	private static FakeServer current;
+
+	private Map<UUID, Player> online = new LinkedHashMap<UUID, Player>();
+	private List<Task> tasks = new ArrayList<Task>();
+	private int nextTaskId = 1;
+	private long ticks = 0;
+
+	// Registered packet listeners, and the packets which made it past them
+	private List<PacketListener> listeners = new ArrayList<PacketListener>();
+	private Map<PlayerInfoAction, Long> infoPacketsSent = new EnumMap<PlayerInfoAction, Long>(PlayerInfoAction.class);
+	private long packetsSent = 0;
+
+	private Plugin plugin;
+	private ProtocolManager manager;
+	private Logger logger = Logger.getLogger("FakeServer");
+
+	/**
+	 * Start a new fake server, replacing any earlier one
+	 *
+	 * @return the server
+	 */
+	public static synchronized FakeServer start() {
+		if (current == null) {
+			MinecraftReflection.setMinecraftPackage(NMS_PACKAGE, OBC_PACKAGE);
+			Bukkit.setServer(proxy(Server.class, new ServerHandler()));
+		}
+		current = new FakeServer();
+		return current;
+	}
+
+	private FakeServer() {
+		plugin = proxy(Plugin.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				switch (method.getName()) {
+				case "getName":
+					return "TabListHide";
+				case "getLogger":
+					return logger;
+				case "isEnabled":
+					return true;
+				case "getServer":
+					return Bukkit.getServer();
+				default:
+					return objectMethod(proxy, method, args);
+				}
+			}
+		});
+		manager = proxy(ProtocolManager.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				switch (method.getName()) {
+				case "addPacketListener":
+					listeners.add((PacketListener) args[0]);
+					return null;
+				case "removePacketListener":
+					listeners.remove(args[0]);
+					return null;
+				case "sendServerPacket":
+					send((Player) args[0], (PacketContainer) args[1]);
+					return null;
+				default:
+					return objectMethod(proxy, method, args);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Build a HidePlayerList hooked into this server, not yet registered
+	 *
+	 * @return the player list hook
+	 */
+	public HidePlayerList createHidePlayerList() {
+		try {
+			MethodHandle ping = MethodHandles.lookup().findStatic(FakeServer.class, "ping", MethodType.methodType(int.class, Player.class));
+			return new HidePlayerList(plugin, manager, new PingCache(ping)) {
+				@Override
+				protected WrappedGameProfile profileOf(Player player) {
+					// Fake players aren't CraftPlayers, and have no skin to copy
+					return new WrappedGameProfile(player.getUniqueId(), player.getName());
+				}
+			};
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Add an online player, without sending any packets
+	 *
+	 * @param name the player's name
+	 * @return the player
+	 */
+	public Player addPlayer(String name) {
+		Player player = proxy(Player.class, new PlayerHandler(UUID.nameUUIDFromBytes(("OfflinePlayer:" + name).getBytes()), name));
+		online.put(player.getUniqueId(), player);
+		return player;
+	}
+
+	/**
+	 * Remove an online player, without sending any packets
+	 *
+	 * @param player the player who left
+	 */
+	public void removePlayer(Player player) {
+		online.remove(player.getUniqueId());
+	}
+
+	/**
+	 * Send the PLAYER_INFO packets the server sends when a player joins: the new player to everyone
+	 * as one shared packet, and everyone to the new player.
+	 *
+	 * @param player the player who joined
+	 */
+	public void sendJoinPackets(Player player) {
+		PacketContainer joined = infoPacket(PlayerInfoAction.ADD_PLAYER, Collections.singletonList(player));
+		for (Player receiver : online.values()) send(receiver, joined);
+		send(player, infoPacket(PlayerInfoAction.ADD_PLAYER, online.values()));
+	}
+
+	/**
+	 * Send the PLAYER_INFO packet the server sends when a player leaves
+	 *
+	 * @param player the player who left
+	 */
+	public void sendQuitPackets(Player player) {
+		PacketContainer left = infoPacket(PlayerInfoAction.REMOVE_PLAYER, Collections.singletonList(player));
+		for (Player receiver : online.values()) send(receiver, left);
+	}
+
+	/**
+	 * Build a PLAYER_INFO packet the way the server does
+	 *
+	 * @param action the action
+	 * @param players the players the packet is about
+	 * @return the packet
+	 */
+	public PacketContainer infoPacket(PlayerInfoAction action, Iterable<Player> players) {
+		List<PlayerInfoData> data = new ArrayList<PlayerInfoData>();
+		for (Player player : players) {
+			data.add(new PlayerInfoData(new WrappedGameProfile(player.getUniqueId(), player.getName()), ping(player),
+					NativeGameMode.fromBukkit(player.getGameMode()), WrappedChatComponent.fromText(player.getName())));
+		}
+		WrappedPlayServerPlayerInfo packet = new WrappedPlayServerPlayerInfo();
+		packet.setAction(action);
+		packet.setData(data);
+		return packet.getHandle();
+	}
+
+	/**
+	 * Pass a packet through the registered listeners to a receiver, as the server would
+	 *
+	 * @param receiver the player the packet is sent to
+	 * @param packet the packet
+	 * @return the packet which reached the receiver, or null if it was cancelled
+	 */
+	public PacketContainer send(Player receiver, PacketContainer packet) {
+		PacketEvent event = PacketEvent.fromServer(this, packet, receiver);
+		for (PacketListener listener : listeners) {
+			if (listener.getSendingWhitelist().getTypes().contains(packet.getType())) listener.onPacketSending(event);
+		}
+		if (event.isCancelled()) return null;
+
+		packetsSent++;
+		if (packet.getType() == PacketType.Play.Server.PLAYER_INFO) {
+			PlayerInfoAction action = event.getPacket().getPlayerInfoAction().read(0);
+			Long count = infoPacketsSent.get(action);
+			infoPacketsSent.put(action, count == null ? 1 : count + 1);
+		}
+		return event.getPacket();
+	}
+
+	/**
+	 * Find the listener registered for a packet type
+	 *
+	 * @param type the packet type
+	 * @return the first listener for the type
+	 */
+	public PacketListener getListener(PacketType type) {
+		for (PacketListener listener : listeners) {
+			if (listener.getSendingWhitelist().getTypes().contains(type)) return listener;
+		}
+		throw new IllegalArgumentException("No listener for " + type);
+	}
+
+	/**
+	 * Run the scheduled tasks which are due
+	 */
+	public void tick() {
+		ticks++;
+		for (Task task : new ArrayList<Task>(tasks)) {
+			if (task.due > ticks || task.cancelled) continue;
+			task.runnable.run();
+			if (task.period > 0) task.due = ticks + task.period;
+			else task.cancelled = true;
+		}
+		for (Iterator<Task> it = tasks.iterator(); it.hasNext();) {
+			if (it.next().cancelled) it.remove();
+		}
+	}
+
+	/**
+	 * @return the players online
+	 */
+	public List<Player> getOnlinePlayers() {
+		return new ArrayList<Player>(online.values());
+	}
+
+	/**
+	 * @return the number of packets which reached a client
+	 */
+	public long getPacketsSent() {
+		return packetsSent;
+	}
+
+	/**
+	 * @param action a PLAYER_INFO action
+	 * @return the number of PLAYER_INFO packets with the action which reached a client
+	 */
+	public long getInfoPacketsSent(PlayerInfoAction action) {
+		Long count = infoPacketsSent.get(action);
+		return count == null ? 0 : count;
+	}
+
+	/**
+	 * Every fake player has the same ping
+	 */
+	private static int ping(Player player) {
+		return 30;
+	}
+
+	private BukkitTask schedule(Runnable runnable, long delay, long period) {
+		final Task task = new Task(nextTaskId++, runnable, ticks + Math.max(1, delay), period);
+		tasks.add(task);
+		return proxy(BukkitTask.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				switch (method.getName()) {
+				case "getTaskId":
+					return task.id;
+				case "isSync":
+					return true;
+				case "getOwner":
+					return plugin;
+				case "cancel":
+					task.cancelled = true;
+					return null;
+				default:
+					return objectMethod(proxy, method, args);
+				}
+			}
+		});
+	}
+
+	private void cancel(int id) {
+		for (Task task : tasks) {
+			if (task.id == id) task.cancelled = true;
+		}
+	}
+
+	private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+		return type.cast(Proxy.newProxyInstance(FakeServer.class.getClassLoader(), new Class<?>[] { type }, handler));
+	}
+
+	/**
+	 * Answer the methods every proxy gets from Object, and return the default value for anything else
+	 */
+	private static Object objectMethod(Object proxy, Method method, Object[] args) {
+		switch (method.getName()) {
+		case "equals":
+			return proxy == args[0];
+		case "hashCode":
+			return System.identityHashCode(proxy);
+		case "toString":
+			return method.getDeclaringClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+		}
+
+		Class<?> type = method.getReturnType();
+		if (type == boolean.class) return false;
+		if (type == int.class) return 0;
+		if (type == long.class) return 0L;
+		if (type == double.class) return 0.0;
+		if (type == float.class) return 0.0f;
+		if (type == short.class) return (short) 0;
+		if (type == byte.class) return (byte) 0;
+		if (type == char.class) return '\0';
+		if (type == List.class) return Collections.emptyList();
+		return null;
+	}
+
+	/**
+	 * The server Bukkit sees, forwarding to the current fake server
+	 */
+	private static class ServerHandler implements InvocationHandler {
+		@Override
+		public Object invoke(Object proxy, Method method, final Object[] args) {
+			final FakeServer server = current;
+			switch (method.getName()) {
+			case "getName":
+				return "FakeServer";
+			case "getVersion":
+				return "git-Spigot (MC: 1.8.3)";
+			case "getBukkitVersion":
+				return "1.8.3-R0.1-SNAPSHOT";
+			case "getLogger":
+				return server.logger;
+			case "getOnlinePlayers":
+				return Collections.unmodifiableCollection(server.online.values());
+			case "getPlayer":
+				return args[0] instanceof UUID ? server.online.get(args[0]) : null;
+			case "isPrimaryThread":
+				return true;
+			case "getScheduler":
+				return proxy(BukkitScheduler.class, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						switch (method.getName()) {
+						case "runTask":
+							return server.schedule((Runnable) args[1], 0, -1);
+						case "runTaskLater":
+							return server.schedule((Runnable) args[1], (Long) args[2], -1);
+						case "runTaskTimer":
+							return server.schedule((Runnable) args[1], (Long) args[2], (Long) args[3]);
+						case "cancelTask":
+							server.cancel((Integer) args[0]);
+							return null;
+						default:
+							return objectMethod(proxy, method, args);
+						}
+					}
+				});
+			default:
+				return objectMethod(proxy, method, args);
+			}
+		}
+	}
+
+	/**
+	 * A player who is only a name, a UUID and a game mode
+	 */
+	private class PlayerHandler implements InvocationHandler {
+		private final UUID uuid;
+		private final String name;
+		private GameMode gameMode = GameMode.SURVIVAL;
+
+		private PlayerHandler(UUID uuid, String name) {
+			this.uuid = uuid;
+			this.name = name;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			switch (method.getName()) {
+			case "getUniqueId":
+				return uuid;
+			case "getName":
+			case "getDisplayName":
+			case "getPlayerListName":
+				return name;
+			case "getGameMode":
+				return gameMode;
+			case "setGameMode":
+				gameMode = (GameMode) args[0];
+				return null;
+			case "isOnline":
+				return online.containsKey(uuid);
+			case "getServer":
+				return Bukkit.getServer();
+			default:
+				return objectMethod(proxy, method, args);
+			}
+		}
+	}
+
+	private static class Task {
+		private final int id;
+		private final Runnable runnable;
+		private final long period;
+		private long due;
+		private boolean cancelled;
+
+		private Task(int id, Runnable runnable, long due, long period) {
+			this.id = id;
+			this.runnable = runnable;
+			this.due = due;
+			this.period = period;
+		}
+	}
+}
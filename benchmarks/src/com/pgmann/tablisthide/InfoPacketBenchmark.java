@@ -0,0 +1,136 @@
+/*
+ * TabListHide - Hide or show players in the tab player list
+ * Copyright (C) 2017 pgmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.pgmann.tablisthide;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.entity.Player;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.comphenix.protocol.PacketType;
+import com.comphenix.protocol.events.PacketContainer;
+import com.comphenix.protocol.events.PacketEvent;
+import com.comphenix.protocol.events.PacketListener;
+import com.comphenix.protocol.wrappers.EnumWrappers.PlayerInfoAction;
+
+/**
+ * Measures the PLAYER_INFO listener and the fan-out when a player is hidden or shown,
+ * with the real HidePlayerList on a {@link FakeServer}.
+ * <p>
+ * Run with <code>java -jar target/benchmarks.jar -prof gc</code> - the gc profiler's
+ * <code>gc.alloc.rate.norm</code> is the bytes allocated per operation.
+ *
+ * @author pgmann
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InfoPacketBenchmark {
+	// Online players, each of whom receives the packets
+	@Param({ "10", "100", "1000" })
+	public int receivers;
+
+	// How many of them are hidden
+	@Param({ "0", "10", "50", "100" })
+	public int hiddenPercent;
+
+	private FakeServer server;
+	private HidePlayerList hpl;
+	private PacketListener listener;
+	private List<Player> players = new ArrayList<Player>();
+
+	// The packet the server sends everyone when each player joins
+	private List<PacketContainer> joinPackets = new ArrayList<PacketContainer>();
+	private int next = 0;
+
+	// Shown and hidden in turn by the fan-out benchmark
+	private Player toggled;
+	private boolean toggledHidden;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		server = FakeServer.start();
+		hpl = server.createHidePlayerList();
+		hpl.setTickBudget(Long.MAX_VALUE);
+		hpl.register(false);
+		listener = server.getListener(PacketType.Play.Server.PLAYER_INFO);
+
+		for (int i = 0; i < receivers; i++) {
+			Player player = server.addPlayer("player" + i);
+			hpl.trackPlayer(player);
+			players.add(player);
+			joinPackets.add(server.infoPacket(PlayerInfoAction.ADD_PLAYER, Collections.singletonList(player)));
+		}
+
+		int hidden = receivers * hiddenPercent / 100;
+		hpl.setVisible(players.subList(0, hidden), false);
+		toggled = players.get(receivers - 1);
+		toggledHidden = hidden == receivers;
+
+		// Send the resulting packets now, so they aren't part of the first measurement
+		server.tick();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		hpl.cleanupAll();
+	}
+
+	/**
+	 * One player's join packet sent to one receiver, going through every pair in turn
+	 */
+	@Benchmark
+	public PacketContainer onPacketSending() {
+		int pair = next++;
+		if (next == receivers * receivers) next = 0;
+
+		PacketEvent event = PacketEvent.fromServer(this, joinPackets.get(pair / receivers), players.get(pair % receivers));
+		listener.onPacketSending(event);
+		return event.getPacket();
+	}
+
+	/**
+	 * Hide or show a player and send the resulting packets to every receiver
+	 */
+	@Benchmark
+	public void sendInfoPacket() {
+		toggledHidden = !toggledHidden;
+		if (toggledHidden) hpl.hidePlayer(toggled);
+		else hpl.showPlayer(toggled);
+		server.tick();
+	}
+}
@@ -0,0 +1,201 @@
+/*
+ * TabListHide - Hide or show players in the tab player list
+ * Copyright (C) 2017 pgmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.pgmann.tablisthide;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.bukkit.GameMode;
+import org.bukkit.entity.Player;
+import org.bukkit.event.player.PlayerGameModeChangeEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.objenesis.ObjenesisStd;
+
+/**
+ * Scripts join storms, mass hides, game mode flips and quits against the real HidePlayerList
+ * and TlhListener on a {@link FakeServer}, and reports how the load grows with the player count.
+ * <p>
+ * Run with <code>java -cp target/benchmarks.jar com.pgmann.tablisthide.SoakTest [players...]</code>,
+ * by default at 100, 1000 and 5000 players. Packets per join and tick times should grow no faster
+ * than the player count, and heap growth should return to about zero once everyone has left.
+ *
+ * @author pgmann
+ */
+public class SoakTest {
+	// Ticks to let delayed work, such as removals and fixes, finish after each phase
+	private static final int SETTLE_TICKS = 40;
+
+	// How many of the players are hidden and flip game mode
+	private static final int HIDDEN_PERCENT = 10;
+	private static final int FLIPPED_PERCENT = 10;
+
+	private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+	private final TlhMetrics allocations = new TlhMetrics();
+
+	private FakeServer server;
+	private HidePlayerList hpl;
+	private TlhListener listener;
+	private List<Player> players = new ArrayList<Player>();
+
+	// Tick times in the current phase
+	private long[] tickTimes = new long[1024];
+	private int tickCount;
+
+	public static void main(String[] args) throws Exception {
+		List<Integer> sizes = new ArrayList<Integer>();
+		for (String arg : args) sizes.add(Integer.parseInt(arg));
+		if (sizes.isEmpty()) sizes.addAll(Arrays.asList(100, 1000, 5000));
+
+		System.out.println(String.format("%-8s %-10s %10s %12s %10s %10s %10s %12s %12s", "players", "phase", "packets",
+				"packets/plr", "tick p50", "tick p99", "tick max", "heap growth", "alloc rate"));
+		for (int size : sizes) new SoakTest().run(size);
+	}
+
+	private void run(int size) throws Exception {
+		server = FakeServer.start();
+		hpl = server.createHidePlayerList();
+		hpl.register(false);
+		installPlugin(hpl);
+		listener = new TlhListener();
+
+		// Everyone joins over a second
+		int perTick = Math.max(1, size / 20);
+		Phase phase = begin(size, "join");
+		for (int i = 0; i < size; i++) {
+			Player player = server.addPlayer("player" + i);
+			players.add(player);
+			PlayerJoinEvent event = new PlayerJoinEvent(player, null);
+			listener.onPlayerJoinEarly(event);
+			listener.onPlayerJoin(event);
+			server.sendJoinPackets(player);
+			if ((i + 1) % perTick == 0) tick();
+		}
+		end(phase);
+
+		// Staff all vanish at once
+		phase = begin(size, "hide");
+		hpl.setVisible(players.subList(0, size * HIDDEN_PERCENT / 100), false);
+		end(phase);
+
+		// Players switch to spectator and back, a tick apart
+		phase = begin(size, "gamemode");
+		List<Player> flipped = players.subList(size - size * FLIPPED_PERCENT / 100, size);
+		for (GameMode gameMode : new GameMode[] { GameMode.SPECTATOR, GameMode.SURVIVAL }) {
+			for (Player player : flipped) {
+				listener.onPlayerGameModeChange(new PlayerGameModeChangeEvent(player, gameMode));
+				player.setGameMode(gameMode);
+			}
+			tick();
+		}
+		end(phase);
+
+		// Everyone leaves over a second
+		phase = begin(size, "quit");
+		for (int i = 0; i < size; i++) {
+			Player player = players.get(i);
+			listener.onPlayerQuit(new PlayerQuitEvent(player, null));
+			server.removePlayer(player);
+			server.sendQuitPackets(player);
+			if ((i + 1) % perTick == 0) tick();
+		}
+		players.clear();
+		end(phase);
+
+		hpl.cleanupAll();
+	}
+
+	/**
+	 * Install a TabListHide for the listener to reach the player list through, without
+	 * running JavaPlugin's constructor which needs a plugin class loader
+	 */
+	private static void installPlugin(HidePlayerList hpl) throws ReflectiveOperationException {
+		TabListHide plugin = new ObjenesisStd().newInstance(TabListHide.class);
+		set(plugin, "hpl", hpl);
+		set(plugin, "rules", new VisibilityRules(null, Logger.getLogger("TabListHide")));
+		set(null, "instance", plugin);
+	}
+
+	private static void set(TabListHide plugin, String name, Object value) throws ReflectiveOperationException {
+		Field field = TabListHide.class.getDeclaredField(name);
+		field.setAccessible(true);
+		field.set(plugin, value);
+	}
+
+	private void tick() {
+		long start = System.nanoTime();
+		server.tick();
+		if (tickCount == tickTimes.length) tickTimes = Arrays.copyOf(tickTimes, tickCount * 2);
+		tickTimes[tickCount++] = System.nanoTime() - start;
+	}
+
+	private Phase begin(int size, String name) {
+		System.gc();
+		tickCount = 0;
+		return new Phase(size, name, server.getPacketsSent(), memory.getHeapMemoryUsage().getUsed(), allocations.allocatedBytes(), System.nanoTime());
+	}
+
+	private void end(Phase phase) {
+		for (int i = 0; i < SETTLE_TICKS; i++) tick();
+
+		long elapsed = System.nanoTime() - phase.start;
+		long allocated = allocations.allocatedBytes() - phase.allocated;
+		System.gc();
+		long heapGrowth = memory.getHeapMemoryUsage().getUsed() - phase.heap;
+		long packets = server.getPacketsSent() - phase.packets;
+
+		long[] ticks = Arrays.copyOf(tickTimes, tickCount);
+		Arrays.sort(ticks);
+		System.out.println(String.format("%-8d %-10s %10d %12.1f %10s %10s %10s %10dKB %10.1fMB/s", phase.size, phase.name, packets,
+				(double) packets / phase.size, millis(ticks, 50), millis(ticks, 99), millis(ticks, 100), heapGrowth / 1024,
+				allocated / (elapsed / 1e9) / (1024 * 1024)));
+	}
+
+	private static String millis(long[] sorted, int percentile) {
+		if (sorted.length == 0) return "-";
+		int index = Math.min(sorted.length - 1, (int) Math.ceil(sorted.length * percentile / 100.0) - 1);
+		return String.format("%.2fms", sorted[Math.max(0, index)] / 1e6);
+	}
+
+	/**
+	 * Where the counters stood when a phase began
+	 */
+	private static class Phase {
+		private final int size;
+		private final String name;
+		private final long packets;
+		private final long heap;
+		private final long allocated;
+		private final long start;
+
+		private Phase(int size, String name, long packets, long heap, long allocated, long start) {
+			this.size = size;
+			this.name = name;
+			this.packets = packets;
+			this.heap = heap;
+			this.allocated = allocated;
+			this.start = start;
+		}
+	}
+}
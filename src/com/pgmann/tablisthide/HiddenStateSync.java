@@ -0,0 +1,351 @@
+/*
+ * TabListHide - Hide or show players in the tab player list
+ * Copyright (C) 2017 pgmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.pgmann.tablisthide;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+/**
+ * Keeps hidden players in step across servers.
+ * <p>
+ * Local changes are collected for a few ticks and published together as one delta, with only the
+ * final state of each player. Each server numbers its deltas, so a gap shows a message was missed.
+ * After a gap, or whenever the transport (re)connects, a snapshot of the whole hidden set is
+ * requested from a single server, and only the server which asked applies the reply. Players
+ * changed since the request was sent, here or by a delta from another server, keep their current
+ * state, as the reply may have been built before the change.
+ * <p>
+ * Every change moves a logical clock forward, and each message carries the sender's clock. A reply
+ * from a server whose clock is behind ours when we asked knows less than we do, eg. one which has
+ * just started with nothing hidden, so it is ignored.
+ *
+ * @author pgmann
+ */
+public class HiddenStateSync implements SyncTransport.Receiver {
+	private static final byte DELTA = 1;
+	private static final byte SNAPSHOT_REQUEST = 2;
+	private static final byte SNAPSHOT = 3;
+
+	private static final byte HIDE = 1;
+	private static final byte SHOW = 0;
+
+	// Addresses a snapshot request to whichever server answers first
+	private static final UUID ANYONE = new UUID(0, 0);
+
+	// How long to wait for a reply before asking every server instead, eg. if the one asked has gone.
+	// The wait doubles with each attempt, and after the last one this server keeps what it has.
+	private static final int REQUEST_TIMEOUT = 100;
+	private static final int REQUEST_ATTEMPTS = 5;
+
+	// Servers not heard from for this many ticks are forgotten, eg. after they shut down
+	private static final int ORIGIN_EXPIRY = 20 * 60 * 5;
+
+	private final UUID origin = UUID.randomUUID();
+	private HidePlayerList hpl;
+	private SyncTransport transport;
+	private Logger logger;
+	private int flushTicks;
+
+	// Only used on the main thread
+	private Map<UUID, Boolean> pending = new LinkedHashMap<UUID, Boolean>();
+	private int ticks = 0;
+	private long sequence = 0;
+	private long clock = 0;
+
+	// The snapshot request waiting for a reply, and who was changed since the first attempt was sent
+	private long request = 0;
+	private long firstAttempt = 0;
+	private long requestClock = 0;
+	private long requests = 0;
+	private int requestTicks = 0;
+	private int attempts = 0;
+	private Set<UUID> changedSinceRequest = new HashSet<UUID>();
+
+	// Received messages, handled on the main thread
+	private Queue<Runnable> incoming = new ConcurrentLinkedQueue<Runnable>();
+	private ConcurrentMap<UUID, Long> lastSequence = new ConcurrentHashMap<UUID, Long>();
+	private ConcurrentMap<UUID, Long> lastHeard = new ConcurrentHashMap<UUID, Long>();
+	private volatile long now = 0;
+
+	/**
+	 * @param hpl the hidden state to keep in step
+	 * @param transport carries messages to and from other servers
+	 * @param flushTicks how many ticks of local changes to publish together
+	 * @param logger where to report bad messages
+	 */
+	protected HiddenStateSync(HidePlayerList hpl, SyncTransport transport, int flushTicks, Logger logger) {
+		this.hpl = hpl;
+		this.transport = transport;
+		this.flushTicks = Math.max(1, flushTicks);
+		this.logger = logger;
+
+		// Players loaded from disk count as a change, so a server with nothing hidden can't undo them
+		if (hpl.getHiddenSet().size() > 0) clock++;
+	}
+
+	/**
+	 * Record a local change, to be published with the next delta. Main thread only.
+	 *
+	 * @param uuid the UUID which changed
+	 * @param hidden whether the UUID is now hidden
+	 */
+	protected void changed(UUID uuid, boolean hidden) {
+		clock++;
+		pending.put(uuid, hidden);
+		if (request != 0) changedSinceRequest.add(uuid);
+	}
+
+	/**
+	 * Handle received messages, and publish local changes every few ticks. Main thread only.
+	 */
+	protected void tick() {
+		Runnable task;
+		while ((task = incoming.poll()) != null) task.run();
+		if (request != 0 && ++requestTicks > REQUEST_TIMEOUT << (attempts - 1)) {
+			if (attempts < REQUEST_ATTEMPTS) requestSnapshot(ANYONE);
+			else giveUp();
+		}
+		if (++now % ORIGIN_EXPIRY == 0) expireOrigins();
+
+		if (++ticks < flushTicks || pending.isEmpty()) return;
+		ticks = 0;
+
+		ByteBuffer out = header(DELTA, 8 + 8 + 4 + pending.size() * 17);
+		out.putLong(++sequence).putLong(clock).putInt(pending.size());
+		for (Map.Entry<UUID, Boolean> change : pending.entrySet()) {
+			out.put(change.getValue() ? HIDE : SHOW).putLong(change.getKey().getMostSignificantBits()).putLong(change.getKey().getLeastSignificantBits());
+		}
+		pending.clear();
+		transport.publish(out.array());
+	}
+
+	@Override
+	public void connected() {
+		incoming.add(new Runnable() {
+			@Override
+			public void run() {
+				// The server heard from most recently is the most likely to still be online
+				requestSnapshot(lastHeardOrigin());
+			}
+		});
+	}
+
+	@Override
+	public void receive(byte[] message) {
+		try {
+			ByteBuffer in = ByteBuffer.wrap(message);
+			byte type = in.get();
+			final UUID sender = new UUID(in.getLong(), in.getLong());
+			if (sender.equals(origin)) return;
+			lastHeard.put(sender, now);
+
+			switch (type) {
+			case DELTA:
+				receiveDelta(sender, in);
+				break;
+			case SNAPSHOT_REQUEST:
+				UUID responder = new UUID(in.getLong(), in.getLong());
+				final long id = in.getLong();
+				if (!responder.equals(origin) && !responder.equals(ANYONE)) break;
+				incoming.add(new Runnable() {
+					@Override
+					public void run() {
+						publishSnapshot(sender, id);
+					}
+				});
+				break;
+			case SNAPSHOT:
+				receiveSnapshot(sender, in);
+				break;
+			default:
+				logger.warning("Ignoring unknown sync message type " + type + " from " + sender);
+			}
+		} catch (BufferUnderflowException e) {
+			logger.warning("Ignoring truncated sync message");
+		}
+	}
+
+	/**
+	 * Stop syncing
+	 */
+	protected void close() {
+		transport.close();
+	}
+
+	private void receiveDelta(final UUID sender, ByteBuffer in) {
+		long seq = in.getLong();
+		final long remoteClock = in.getLong();
+		int count = in.getInt();
+
+		final List<UUID> hide = new ArrayList<UUID>();
+		final List<UUID> show = new ArrayList<UUID>();
+		for (int i = 0; i < count; i++) {
+			byte action = in.get();
+			UUID uuid = new UUID(in.getLong(), in.getLong());
+			(action == HIDE ? hide : show).add(uuid);
+		}
+
+		// A gap in the sequence means a delta was missed
+		Long last = lastSequence.put(sender, seq);
+		final boolean missed = last != null && seq != last + 1;
+
+		incoming.add(new Runnable() {
+			@Override
+			public void run() {
+				clock = Math.max(clock, remoteClock);
+				if (request != 0) {
+					changedSinceRequest.addAll(hide);
+					changedSinceRequest.addAll(show);
+				}
+				hpl.applyRemote(hide, show);
+				if (missed) requestSnapshot(sender);
+			}
+		});
+	}
+
+	private void receiveSnapshot(final UUID sender, ByteBuffer in) {
+		// Only the server which asked applies a snapshot
+		UUID requester = new UUID(in.getLong(), in.getLong());
+		if (!requester.equals(origin)) return;
+		final long id = in.getLong();
+		long seq = in.getLong();
+		final long remoteClock = in.getLong();
+		int count = in.getInt();
+
+		final UuidSet hidden = new UuidSet(count);
+		for (int i = 0; i < count; i++) hidden.add(in.getLong(), in.getLong());
+		lastSequence.put(sender, seq);
+
+		incoming.add(new Runnable() {
+			@Override
+			public void run() {
+				// Only the first reply to any attempt at the current request is applied
+				if (request == 0 || id < firstAttempt) return;
+				request = 0;
+				if (remoteClock < requestClock) {
+					logger.fine("Ignoring hidden players snapshot from " + sender + ", which is behind this server");
+					changedSinceRequest.clear();
+					return;
+				}
+				clock = Math.max(clock, remoteClock);
+
+				// The responder may not have seen changes made since the request
+				List<UUID> hide = new ArrayList<UUID>();
+				List<UUID> show = new ArrayList<UUID>();
+				UuidSet current = hpl.getHiddenSet();
+				for (UUID uuid : hidden.toList()) {
+					if (!current.contains(uuid) && !changedSinceRequest.contains(uuid)) hide.add(uuid);
+				}
+				for (UUID uuid : current.toList()) {
+					if (!hidden.contains(uuid) && !changedSinceRequest.contains(uuid)) show.add(uuid);
+				}
+				changedSinceRequest.clear();
+				hpl.applyRemote(hide, show);
+			}
+		});
+	}
+
+	/**
+	 * Ask a single server for its whole hidden set. Main thread only.
+	 *
+	 * @param responder the server to ask, or {@link #ANYONE} if no other server is known
+	 */
+	private void requestSnapshot(UUID responder) {
+		// A retry keeps the changes recorded since the first attempt, as a late reply may still arrive
+		attempts = request == 0 || !responder.equals(ANYONE) ? 1 : attempts + 1;
+		if (request == 0) {
+			changedSinceRequest.clear();
+			firstAttempt = requests + 1;
+			requestClock = clock;
+		}
+		request = ++requests;
+		requestTicks = 0;
+
+		// Unflushed changes are newer than any reply
+		changedSinceRequest.addAll(pending.keySet());
+
+		ByteBuffer out = header(SNAPSHOT_REQUEST, 16 + 8);
+		out.putLong(responder.getMostSignificantBits()).putLong(responder.getLeastSignificantBits()).putLong(request);
+		transport.publish(out.array());
+	}
+
+	/**
+	 * Stop waiting for a snapshot when no server has answered. Main thread only.
+	 */
+	private void giveUp() {
+		logger.info("No server answered a request for hidden players after " + attempts + " attempts, keeping this server's");
+		request = 0;
+		changedSinceRequest.clear();
+	}
+
+	/**
+	 * Find the server heard from most recently. Main thread only.
+	 *
+	 * @return the server's origin, or {@link #ANYONE} if none has been heard from recently
+	 */
+	private UUID lastHeardOrigin() {
+		UUID latest = ANYONE;
+		long latestTick = now - ORIGIN_EXPIRY;
+		for (Map.Entry<UUID, Long> heard : lastHeard.entrySet()) {
+			if (heard.getValue() > latestTick) {
+				latest = heard.getKey();
+				latestTick = heard.getValue();
+			}
+		}
+		return latest;
+	}
+
+	/**
+	 * Forget servers which haven't been heard from for a while. Main thread only.
+	 */
+	private void expireOrigins() {
+		for (Map.Entry<UUID, Long> heard : lastHeard.entrySet()) {
+			if (heard.getValue() <= now - ORIGIN_EXPIRY && lastHeard.remove(heard.getKey(), heard.getValue())) {
+				lastSequence.remove(heard.getKey());
+			}
+		}
+	}
+
+	private void publishSnapshot(UUID requester, long id) {
+		List<UUID> hidden = hpl.getHiddenSet().toList();
+		ByteBuffer out = header(SNAPSHOT, 16 + 8 + 8 + 8 + 4 + hidden.size() * 16);
+		out.putLong(requester.getMostSignificantBits()).putLong(requester.getLeastSignificantBits()).putLong(id);
+		out.putLong(sequence).putLong(clock).putInt(hidden.size());
+		for (UUID uuid : hidden) out.putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits());
+		transport.publish(out.array());
+	}
+
+	private ByteBuffer header(byte type, int length) {
+		ByteBuffer out = ByteBuffer.allocate(1 + 16 + length);
+		out.put(type).putLong(origin.getMostSignificantBits()).putLong(origin.getLeastSignificantBits());
+		return out;
+	}
+}
@@ -0,0 +1,170 @@
+/*
+ * TabListHide - Hide or show players in the tab player list
+ * Copyright (C) 2017 pgmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.pgmann.tablisthide;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Saves hidden players to an append-only journal, so they stay hidden after a restart.
+ * <p>
+ * Each record is an action byte followed by the UUID's two longs. Writes happen on a
+ * background thread, and the journal is compacted once it is mostly made of old records.
+ *
+ * @author pgmann
+ */
+public class HiddenStore {
+	private static final int RECORD_SIZE = 17;
+	private static final byte HIDE = 1;
+	private static final byte SHOW = 0;
+
+	// Compact once the journal has this many records and at least 4 for each hidden player
+	private static final int COMPACT_MIN_RECORDS = 1024;
+	private static final int COMPACT_RATIO = 4;
+
+	private File file;
+	private Logger logger;
+	private ExecutorService writer = Executors.newSingleThreadExecutor();
+
+	// Only used by the writer thread
+	private FileChannel channel;
+	private ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE);
+	private long records = 0;
+
+	protected HiddenStore(File file, Logger logger) {
+		this.file = file;
+		this.logger = logger;
+	}
+
+	/**
+	 * Read the hidden players from the journal
+	 *
+	 * @return the hidden players' UUIDs
+	 */
+	protected UuidSet load() {
+		UuidSet hidden = new UuidSet();
+		if (!file.exists()) return hidden;
+
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel in = raf.getChannel()) {
+			long size = in.size();
+			MappedByteBuffer map = in.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+			// Ignore a partly written final record
+			records = size / RECORD_SIZE;
+			for (long i = 0; i < records; i++) {
+				byte action = map.get();
+				long msb = map.getLong(), lsb = map.getLong();
+				if (action == HIDE) hidden.add(msb, lsb);
+				else hidden.remove(msb, lsb);
+			}
+
+			if (size != records * RECORD_SIZE) logger.warning("Discarding a partly written record at the end of " + file);
+		} catch (IOException e) {
+			logger.log(Level.SEVERE, "Could not read hidden players from " + file, e);
+		}
+		return hidden;
+	}
+
+	/**
+	 * Record a change in the background
+	 *
+	 * @param uuid the UUID which changed
+	 * @param hidden whether the UUID is now hidden
+	 * @param snapshot all hidden UUIDs after the change, used if the journal is compacted - must not be modified later
+	 */
+	protected void append(final UUID uuid, final boolean hidden, final UuidSet snapshot) {
+		writer.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					write(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(), hidden ? HIDE : SHOW);
+					if (records >= COMPACT_MIN_RECORDS && records >= (long) snapshot.size() * COMPACT_RATIO) compact(snapshot);
+				} catch (IOException e) {
+					logger.log(Level.SEVERE, "Could not save hidden player " + uuid + " to " + file, e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Finish writing and close the journal
+	 */
+	protected void close() {
+		writer.shutdown();
+		try {
+			if (!writer.awaitTermination(10, TimeUnit.SECONDS)) logger.warning("Timed out saving hidden players to " + file);
+			if (channel != null) channel.close();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Could not close " + file, e);
+		}
+	}
+
+	private void write(long msb, long lsb, byte action) throws IOException {
+		if (channel == null) {
+			file.getParentFile().mkdirs();
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+
+			// Cut off any partly written record skipped by load(), or records appended after it would be read misaligned
+			channel.truncate(records * RECORD_SIZE);
+		}
+
+		buffer.clear();
+		buffer.put(action).putLong(msb).putLong(lsb).flip();
+		while (buffer.hasRemaining()) channel.write(buffer);
+		records++;
+	}
+
+	/**
+	 * Replace the journal with one record per hidden UUID
+	 */
+	private void compact(UuidSet snapshot) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		List<UUID> hidden = snapshot.toList();
+
+		ByteBuffer out = ByteBuffer.allocate(hidden.size() * RECORD_SIZE);
+		for (UUID uuid : hidden) out.put(HIDE).putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits());
+		out.flip();
+
+		try (FileChannel tempChannel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (out.hasRemaining()) tempChannel.write(out);
+			tempChannel.force(true);
+		}
+
+		channel.close();
+		channel = null;
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		records = hidden.size();
+	}
+}
@@ -18,46 +18,127 @@
 
 package com.pgmann.tablisthide;
 
-import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Queue;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 import org.bukkit.Bukkit;
 import org.bukkit.GameMode;
+import org.bukkit.Location;
 import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
 import org.bukkit.scheduler.BukkitRunnable;
+import org.bukkit.scheduler.BukkitTask;
 
 import com.comphenix.protocol.PacketType;
 import com.comphenix.protocol.ProtocolLibrary;
 import com.comphenix.protocol.ProtocolManager;
+import com.comphenix.protocol.async.AsyncListenerHandler;
 import com.comphenix.protocol.events.ListenerPriority;
+import com.comphenix.protocol.events.PacketContainer;
 import com.comphenix.protocol.events.PacketAdapter;
 import com.comphenix.protocol.events.PacketEvent;
 import com.comphenix.protocol.events.PacketListener;
-import com.comphenix.protocol.injector.BukkitUnwrapper;
-import com.comphenix.protocol.reflect.FieldUtils;
-import com.comphenix.protocol.reflect.FuzzyReflection;
 import com.comphenix.protocol.wrappers.EnumWrappers.NativeGameMode;
 import com.comphenix.protocol.wrappers.EnumWrappers.PlayerInfoAction;
 import com.comphenix.protocol.wrappers.PlayerInfoData;
 import com.comphenix.protocol.wrappers.WrappedChatComponent;
 import com.comphenix.protocol.wrappers.WrappedGameProfile;
+import com.comphenix.protocol.wrappers.WrappedServerPing;
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.MapMaker;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 
 public class HidePlayerList {
+	// Shown for hidden players until they are removed from the list
+	private static final WrappedChatComponent BLANK_NAME = WrappedChatComponent.fromText("");
+
+	private Plugin plugin;
 
 	// ProtocolLib
 	private PacketListener overrideListener;
+	private PacketListener spawnListener;
+	private PacketListener pingListener;
+
+	// Filters packets in each player's Netty pipeline instead of the listener, if enabled
+	private NettyPlayerInfoEngine netty;
 	private ProtocolManager manager;
+	private AsyncListenerHandler asyncHandler;
+
+	// Packet counts and timings
+	private TlhMetrics metrics = new TlhMetrics();
+
+	// Collects packets to send at the end of the tick
+	private InfoPacketBatcher batcher;
+
+	// Players to hide - read by the listener, which may run off the main thread
+	// Replaced by a modified copy on each change, so it can be read without locking
+	private volatile UuidSet hiddenPlayers = new UuidSet();
+
+	// Packets sent by TabListHide itself, which the listener passes through untouched
+	// Held by identity and weakly, so packets which are never sent don't leak
+	private Set<Object> ownPackets = Collections.newSetFromMap(new MapMaker().weakKeys().<Object, Boolean>makeMap());
+
+	// Viewers who can still see particular hidden players, by player slot
+	private PlayerSlots slots = new PlayerSlots();
+	private VisibilityMatrix revealed = new VisibilityMatrix();
+
+	// What each client's tab list contains, so redundant packets can be dropped
+	private ShadowTabList shadow = new ShadowTabList(slots);
+
+	// Online players, so the listener doesn't need to look them up through Bukkit
+	private ConcurrentMap<UUID, PlayerSession> sessions = new ConcurrentHashMap<UUID, PlayerSession>();
+
+	// Saves hidden players between restarts, if enabled
+	private HiddenStore store;
+
+	// Keeps hidden players in step with other servers, if enabled
+	private HiddenStateSync sync;
+
+	// Delayed work, driven by a single task each tick
+	private TimingWheel wheel = new TimingWheel();
+	private BukkitTask tickTask;
+
+	// Packet work, spread over ticks so join storms don't cause lag spikes
+	private VisibilityQueue queue = new VisibilityQueue();
+	private long tickBudget = TimeUnit.MILLISECONDS.toNanos(1);
 
-	// Players to hide
-	private Set<String> hiddenPlayers = new HashSet<String>();
-	private Set<String> fixedPlayers = new HashSet<String>();
+	// Who is near whom, if only nearby players are listed
+	private ProximityIndex proximity;
 
-	// To get the ping
-	private Field pingField;
+	// Which players fit in each viewer's tab list, if it is capped
+	private TabRanking ranking;
+
+	// Bulk changes requested from other threads, run at the start of the next tick
+	private Queue<Runnable> requests = new ConcurrentLinkedQueue<Runnable>();
+	private List<Runnable> afterFlush = new ArrayList<Runnable>();
+
+	// Futures of bulk changes which haven't completed, failed if the hook is cleaned up first
+	private Set<SettableFuture<Set<UUID>>> pendingFutures = Collections.newSetFromMap(new ConcurrentHashMap<SettableFuture<Set<UUID>>, Boolean>());
+	private volatile boolean closed = false;
+
+	// The hidden set as an immutable Set, rebuilt when the hidden set is replaced
+	private volatile Snapshot snapshot = new Snapshot(hiddenPlayers);
+
+	// Online players as shown in the server list, rebuilt when the hidden set or the roster changes
+	private volatile int roster = 0;
+	private volatile PingSample pingSample = new PingSample(hiddenPlayers, roster, Collections.<PlayerSession>emptyList());
+
+	// Ping of each player, by player slot
+	private PingCache pings;
 
 	/**
 	 * Start the player list hook
@@ -65,53 +146,484 @@ public class HidePlayerList {
 	 * @param plugin the owner plugin
 	 */
 	protected HidePlayerList(final TabListHide p) {
+		this(p, ProtocolLibrary.getProtocolManager());
+	}
+
+	/**
+	 * Start the player list hook with a specific protocol manager
+	 * 
+	 * @param plugin the owner plugin
+	 * @param manager the protocol manager to register with
+	 */
+	protected HidePlayerList(final TabListHide p, ProtocolManager manager) {
+		this(p, manager, new PingCache());
+	}
+
+	/**
+	 * Start the player list hook without a real server behind it, eg. in the benchmarks
+	 * 
+	 * @param plugin the owner plugin
+	 * @param manager the protocol manager to register with and send packets through
+	 * @param pings reads each player's ping
+	 */
+	protected HidePlayerList(final Plugin p, ProtocolManager manager, PingCache pings) {
 		this.overrideListener = new PacketAdapter(p, ListenerPriority.NORMAL, PacketType.Play.Server.PLAYER_INFO) {
 			@Override
 			public void onPacketSending(PacketEvent event) {
-				// Only alter ADD_PLAYER actions
-				if (event.getPacket().getPlayerInfoAction().read(0) != PlayerInfoAction.ADD_PLAYER) return;
-
-				// Get packet data
-				List<PlayerInfoData> playerInfoDataList = event.getPacket().getPlayerInfoDataLists().read(0);
-				PlayerInfoData playerInfoData = playerInfoDataList.get(0);
-
-				// Check the packet data is valid
-				if (playerInfoData == null || playerInfoData.getProfile() == null || Bukkit.getPlayer(playerInfoData.getProfile().getUUID()) == null) {
-					return; // Unknown Player
-				}
+				// Our own packets are already correct for their receiver
+				if (isOwnPacket(event.getPacket())) return;
 
-				// Check if the player needs hidden
-				String name = playerInfoData.getProfile().getName();
-				if (hiddenPlayers.contains(name)) {
-					final Player player = Bukkit.getPlayer(name);
-
-					// Ignore "fixed" players - those in spectator mode, who need to be shown in their own tab list
-					if(player.equals(event.getPlayer()) && fixedPlayers.contains(player.getName())) return;
-					
-					// Must allow the player to spawn before removing from player list - hide display name initially instead
-					playerInfoDataList.set(0, new PlayerInfoData(playerInfoData.getProfile(), getPlayerPing(player), playerInfoData.getGameMode(), WrappedChatComponent.fromText("")));
-
-					// Update packet
-					event.getPacket().getPlayerInfoDataLists().write(0, playerInfoDataList);
-					
-					// Hide the player completely after 10 ticks
-					new BukkitRunnable() {
-						@Override
-						public void run() {
-							hidePlayer(player);
-						}
-					}.runTaskLater(p, 10);
+				long start = System.nanoTime();
+				PacketContainer packet = event.getPacket();
+				PacketContainer filtered = filterPlayerInfo(event.getPlayer(), packet);
+				if (filtered != packet) {
+					event.setPacket(filtered);
+					metrics.packetsRewritten.increment();
 				}
+				metrics.listener.recordSince(start);
 			}
 		};
-		this.manager = ProtocolLibrary.getProtocolManager();
+		this.spawnListener = new PacketAdapter(p, ListenerPriority.MONITOR, PacketType.Play.Server.NAMED_ENTITY_SPAWN) {
+			@Override
+			public void onPacketSending(PacketEvent event) {
+				if (event.isCancelled()) return;
+				spawned(event.getPlayer(), event.getPacket().getSpecificModifier(UUID.class).read(0));
+			}
+		};
+		this.pingListener = new PacketAdapter(p, ListenerPriority.NORMAL, PacketType.Status.Server.OUT_SERVER_INFO) {
+			@Override
+			public void onPacketSending(PacketEvent event) {
+				if (filterServerPing(event.getPacket().getServerPings().read(0))) metrics.pingsFiltered.increment();
+			}
+		};
+		this.manager = manager;
+		this.batcher = new InfoPacketBatcher(manager, metrics, shadow, ownPackets);
+		this.pings = pings;
+		this.plugin = p;
+	}
+
+	/**
+	 * Rewrite an outgoing PLAYER_INFO packet so hidden players spawn without being listed,
+	 * recording what the receiver's tab list will contain
+	 * 
+	 * @param receiver the player the packet is being sent to
+	 * @param packet the packet, left unchanged since the server may send the same packet to several players
+	 * @return a rewritten copy of the packet, or the packet itself if nothing needed hidden
+	 */
+	protected PacketContainer filterPlayerInfo(Player receiver, PacketContainer packet) {
+		// Only alter ADD_PLAYER actions, but keep track of removals
+		PlayerInfoAction action = packet.getPlayerInfoAction().read(0);
+		if (action != PlayerInfoAction.ADD_PLAYER && action != PlayerInfoAction.REMOVE_PLAYER) return packet;
+
+		// Get packet data - batched packets may contain several entries
+		List<PlayerInfoData> playerInfoDataList = packet.getPlayerInfoDataLists().read(0);
+		UUID receiverId = receiver.getUniqueId();
+		int receiverSlot = slotOf(receiverId);
+		boolean changed = false;
+
+		for (int i = 0; i < playerInfoDataList.size(); i++) {
+			PlayerInfoData playerInfoData = playerInfoDataList.get(i);
+
+			// Check the packet data is valid
+			if (playerInfoData == null || playerInfoData.getProfile() == null) continue;
+			UUID uuid = playerInfoData.getProfile().getUUID();
+			if (uuid == null) continue;
+
+			if (action == PlayerInfoAction.REMOVE_PLAYER) {
+				shadow.update(receiverSlot, slotOf(uuid), ShadowTabList.ABSENT);
+				continue;
+			}
+
+			// Check if the player needs hidden
+			if (!isHiddenFrom(receiverId, uuid)) {
+				shadow.update(receiverSlot, slotOf(uuid), ShadowTabList.LISTED);
+				continue;
+			}
+
+			// Must allow the player to spawn before removing from player list - hide display name initially instead
+			// Profiles without an online player (eg. NPCs) keep the ping they were sent with
+			PlayerSession session = sessions.get(uuid);
+			int ping = session != null ? pings.get(session.getSlot()) : playerInfoData.getPing();
+			playerInfoDataList.set(i, new PlayerInfoData(playerInfoData.getProfile(), ping, playerInfoData.getGameMode(), BLANK_NAME));
+			shadow.update(receiverSlot, slotOf(uuid), ShadowTabList.BLANK);
+			changed = true;
+
+			// Hide the player completely from this receiver once they have spawned, or after 10 ticks at the latest
+			scheduleRemoval(receiver, playerInfoData);
+		}
+
+		if (!changed) return packet;
+
+		// The list read is already a copy, so only the clone sees the blanked entries
+		PacketContainer copy = packet.shallowClone();
+		copy.getPlayerInfoDataLists().write(0, playerInfoDataList);
+		return copy;
+	}
+
+	/**
+	 * Determine if a player should be left out of a receiver's tab list.
+	 * Safe to call from any thread.
+	 * 
+	 * @param receiver the UUID of the player whose tab list is checked
+	 * @param target the UUID of the player to check
+	 * @return whether the target should be hidden from the receiver
+	 */
+	protected boolean isHiddenFrom(UUID receiver, UUID target) {
+		if (isExcluded(receiver, target)) return true;
+
+		// Players ranked out of a full tab list are left out too
+		TabRanking ranking = this.ranking;
+		return ranking != null && !ranking.isListed(slotOf(receiver), slotOf(target));
+	}
+
+	/**
+	 * Determine if a player should be left out of a receiver's tab list, whether or not there is room for them.
+	 * Safe to call from any thread.
+	 * 
+	 * @param receiver the UUID of the player whose tab list is checked
+	 * @param target the UUID of the player to check
+	 * @return whether the target should be hidden from the receiver
+	 */
+	private boolean isExcluded(UUID receiver, UUID target) {
+		// Players too far away are left out, hidden or not
+		ProximityIndex proximity = this.proximity;
+		if (proximity != null && !proximity.isNear(slotOf(receiver), slotOf(target))) return true;
+
+		// Most players aren't hidden, so check the index before anything else
+		if (!hiddenPlayers.contains(target)) return false;
+
+		// Ignore receivers who can still see this hidden player
+		return !isRevealed(receiver, target);
+	}
+
+	/**
+	 * Check if a packet was sent by TabListHide itself. Safe to call from any thread.
+	 * 
+	 * @param packet the packet to check
+	 * @return whether the packet is one of ours
+	 */
+	protected boolean isOwnPacket(PacketContainer packet) {
+		return isOwnPacket(packet.getHandle());
+	}
+
+	/**
+	 * Check if a packet was sent by TabListHide itself. Safe to call from any thread.
+	 * 
+	 * @param handle the NMS packet to check
+	 * @return whether the packet is one of ours
+	 */
+	protected boolean isOwnPacket(Object handle) {
+		return ownPackets.contains(handle);
+	}
+
+	/**
+	 * Record an entry sent unchanged to a receiver, for a filter which doesn't go through
+	 * {@link #filterPlayerInfo(Player, PacketContainer)}. Safe to call from any thread.
+	 * 
+	 * @param receiverSlot the slot of the player the entry was sent to
+	 * @param target the UUID of the entry
+	 * @param listed whether the entry was added, rather than removed
+	 */
+	protected void recordEntry(int receiverSlot, UUID target, boolean listed) {
+		shadow.update(receiverSlot, slotOf(target), listed ? ShadowTabList.LISTED : ShadowTabList.ABSENT);
 	}
 
 	/**
 	 * Start the hook
+	 * 
+	 * @param async whether to filter packets on ProtocolLib's asynchronous threads instead of the main thread
+	 */
+	protected void register(boolean async) {
+		// Track players who were online before the plugin was enabled
+		for (Player player : Bukkit.getOnlinePlayers()) {
+			trackPlayer(player);
+		}
+
+		// Their tab lists were sent before anyone was near or far, or ranked
+		if (proximity != null || ranking != null) {
+			for (Player player : Bukkit.getOnlinePlayers()) reconcile(player);
+		}
+
+		tickTask = new BukkitRunnable() {
+			@Override
+			public void run() {
+				tick();
+			}
+		}.runTaskTimer(plugin, 1, 1);
+
+		if (netty != null) {
+			// Packets are filtered in each player's pipeline instead
+		} else if (async) {
+			asyncHandler = manager.getAsynchronousManager().registerAsyncHandler(overrideListener);
+			asyncHandler.start();
+		} else {
+			manager.addPacketListener(overrideListener);
+		}
+
+		// Only reads the packet, so it is the same whichever engine filters PLAYER_INFO
+		manager.addPacketListener(spawnListener);
+		if (pingListener != null) manager.addPacketListener(pingListener);
+	}
+
+	/**
+	 * Stop hiding players from the server list's player count and sample. Must be called before {@link #register(boolean)}.
+	 */
+	protected void showInServerList() {
+		pingListener = null;
+	}
+
+	/**
+	 * Snapshot pings, run delayed work which is due and as much queued work as the budget allows,
+	 * then send this tick's player list changes
+	 */
+	private void tick() {
+		long start = System.nanoTime();
+		long allocated = metrics.allocatedBytes();
+
+		for (PlayerSession session : sessions.values()) {
+			pings.update(session.getSlot(), session.getPlayer());
+		}
+		wheel.tick();
+		if (ranking != null) ranking.tick();
+		if (sync != null) sync.tick();
+		for (Runnable request; (request = requests.poll()) != null;) request.run();
+		queue.drain(tickBudget);
+		batcher.flush();
+
+		// Everything queued before these markers has now been sent
+		for (Runnable flushed : afterFlush) flushed.run();
+		afterFlush.clear();
+
+		metrics.tickAllocatedBytes.add(metrics.allocatedBytes() - allocated);
+		metrics.tick.recordSince(start);
+	}
+
+	/**
+	 * Load hidden players from a store, and save any further changes to it
+	 * 
+	 * @param store the store to use
+	 * @return the number of hidden players loaded
+	 */
+	protected synchronized int persist(HiddenStore store) {
+		UuidSet loaded = store.load();
+
+		// Keep players hidden before the store was loaded
+		List<UUID> added = new ArrayList<UUID>();
+		for (UUID uuid : hiddenPlayers.toList()) {
+			if (loaded.add(uuid)) added.add(uuid);
+		}
+
+		hiddenPlayers = loaded;
+		this.store = store;
+		for (UUID uuid : added) store.append(uuid, true, loaded);
+		return loaded.size();
+	}
+
+	/**
+	 * Set how long queued visibility work may take each tick
+	 * 
+	 * @param nanos the time budget in nanoseconds
 	 */
-	protected void register() {
-		manager.addPacketListener(overrideListener);
+	protected void setTickBudget(long nanos) {
+		this.tickBudget = nanos;
+	}
+
+	/**
+	 * Filter packets in each player's Netty pipeline instead of through ProtocolLib. Must be called before {@link #register(boolean)}.
+	 * 
+	 * @throws IllegalStateException if the server's packets couldn't be found
+	 */
+	protected void useNettyEngine() {
+		netty = new NettyPlayerInfoEngine(this, metrics, plugin.getLogger());
+	}
+
+	/**
+	 * Only list players near each viewer. Must be called before {@link #register(boolean)}.
+	 * 
+	 * @param radius how many chunks apart players can be and still be listed, or -1 for the same world
+	 */
+	protected void setProximity(int radius) {
+		proximity = new ProximityIndex(radius, new ProximityIndex.Callback() {
+			@Override
+			public void changed(Player first, Player second, boolean near) {
+				if (ranking != null) {
+					ranking.update(slotOf(first.getUniqueId()), slotOf(second.getUniqueId()));
+					ranking.update(slotOf(second.getUniqueId()), slotOf(first.getUniqueId()));
+				}
+				sendListed(first, second, near);
+				sendListed(second, first, near);
+			}
+		});
+	}
+
+	/**
+	 * Cap each viewer's tab list, keeping the players with the highest priority. Must be called before {@link #register(boolean)}.
+	 * 
+	 * @param capacity the most entries a viewer's tab list may have, not counting themself
+	 * @param priority the tiers which keep a player in a full tab list, highest first
+	 * @param staffPermission the permission which puts a player in the staff tier
+	 * @param recentTicks how long an interaction keeps players in each other's recent tier
+	 */
+	protected void setCapacity(int capacity, List<TabRanking.Tier> priority, String staffPermission, long recentTicks) {
+		ranking = new TabRanking(capacity, priority, staffPermission, recentTicks, new TabRanking.Callback() {
+			@Override
+			public boolean isExcluded(Player viewer, Player target) {
+				return HidePlayerList.this.isExcluded(viewer.getUniqueId(), target.getUniqueId());
+			}
+
+			@Override
+			public void changed(Player viewer, Player target, boolean listed) {
+				sendListed(viewer, target, listed);
+			}
+		});
+	}
+
+	/**
+	 * Update a viewer's tab list after a player comes into or goes out of range, or is ranked in or out of a full tab list
+	 * 
+	 * @param viewer the player whose tab list is updated
+	 * @param target the player who came in or went out
+	 * @param listed whether the target should now be listed
+	 */
+	private void sendListed(Player viewer, Player target, boolean listed) {
+		// Players who are still hidden for another reason stay out of the tab list
+		if (listed && isHiddenFrom(viewer.getUniqueId(), target.getUniqueId())) return;
+		batcher.queue(viewer, getInfoData(target), listed);
+	}
+
+	/**
+	 * Record that two players interacted, so they rank higher in each other's capped tab list for a while
+	 * 
+	 * @param first one of the players
+	 * @param second the other player
+	 */
+	protected void interacted(Player first, Player second) {
+		if (ranking != null) ranking.interacted(slotOf(first.getUniqueId()), slotOf(second.getUniqueId()));
+	}
+
+	/**
+	 * Change whether a target is a viewer's friend or in their party, which ranks them higher in the viewer's capped tab list.
+	 * Both players must be online, and the relation is forgotten when either leaves.
+	 * 
+	 * @param viewer the player whose tab list is affected
+	 * @param target the friend or party member
+	 * @param tier {@link TabRanking.Tier#FRIEND} or {@link TabRanking.Tier#PARTY}
+	 * @param value whether the relation applies
+	 */
+	protected void setRelation(Player viewer, Player target, TabRanking.Tier tier, boolean value) {
+		if (ranking != null) ranking.setRelation(slotOf(viewer.getUniqueId()), slotOf(target.getUniqueId()), tier, value);
+	}
+
+	/**
+	 * Check a player's permission for the staff tier of capped tab lists again
+	 * 
+	 * @param player the player whose permissions changed
+	 */
+	protected void refreshStaff(Player player) {
+		if (ranking != null) ranking.refreshStaff(slotOf(player.getUniqueId()));
+	}
+
+	/**
+	 * Update a player's position in the proximity index, if only nearby players are listed
+	 * 
+	 * @param player the player who moved
+	 * @param location where the player is now
+	 */
+	protected void moveTo(Player player, Location location) {
+		if (proximity != null) proximity.move(slotOf(player.getUniqueId()), location);
+	}
+
+	/**
+	 * Keep hidden players in step with other servers
+	 * 
+	 * @param transport carries messages to and from other servers
+	 * @param flushTicks how many ticks of local changes to publish together
+	 */
+	protected void startSync(SyncTransport transport, int flushTicks) {
+		if (sync != null) sync.close();
+		sync = new HiddenStateSync(this, transport, flushTicks, plugin.getLogger());
+		transport.start(sync);
+	}
+
+	/**
+	 * Apply changes received from another server, without sending them back out
+	 * 
+	 * @param hide the UUIDs to hide
+	 * @param show the UUIDs to show
+	 */
+	protected void applyRemote(Collection<UUID> hide, Collection<UUID> show) {
+		for (UUID uuid : setHidden(hide, true, false)) {
+			PlayerSession session = sessions.get(uuid);
+			if (session != null) queueHidden(session.getPlayer());
+		}
+		for (UUID uuid : setHidden(show, false, false)) {
+			PlayerSession session = sessions.get(uuid);
+			if (session != null) queueShown(session.getPlayer());
+		}
+	}
+
+	/**
+	 * Retrieve the hidden set. It is never modified, changes replace it with a new copy.
+	 * 
+	 * @return the UUIDs of all hidden players
+	 */
+	protected UuidSet getHiddenSet() {
+		return hiddenPlayers;
+	}
+
+	/**
+	 * Wrap a player's profile, with their skin, for their tab list entry
+	 * 
+	 * @param player the player to wrap
+	 * @return the wrapped profile
+	 */
+	protected WrappedGameProfile profileOf(Player player) {
+		return WrappedGameProfile.fromPlayer(player);
+	}
+
+	/**
+	 * Start tracking a player who has joined
+	 * 
+	 * @param player the player who joined
+	 */
+	protected void trackPlayer(Player player) {
+		long start = System.nanoTime();
+		PlayerSession session = new PlayerSession(player, slots.acquire(player.getUniqueId()), profileOf(player));
+		pings.update(session.getSlot(), player);
+		sessions.put(player.getUniqueId(), session);
+		roster++;
+		if (proximity != null) proximity.add(session.getSlot(), player, player.getLocation());
+		if (ranking != null) ranking.add(session.getSlot(), player);
+		if (netty != null) netty.inject(player);
+		metrics.playersJoined.increment();
+		metrics.trackPlayer.recordSince(start);
+	}
+
+	/**
+	 * Update a player's cached game mode
+	 * 
+	 * @param player the player whose game mode changed
+	 * @param gameMode the new game mode
+	 */
+	protected void updateGameMode(Player player, GameMode gameMode) {
+		PlayerSession session = sessions.get(player.getUniqueId());
+		if (session != null) session.setGameMode(gameMode);
+	}
+
+	/**
+	 * Stop tracking a player who has left
+	 * 
+	 * @param player the player who left
+	 */
+	protected void untrackPlayer(Player player) {
+		if (netty != null) netty.uninject(player);
+		sessions.remove(player.getUniqueId());
+		roster++;
+		int slot = slots.release(player.getUniqueId());
+		if (proximity != null) proximity.remove(slot);
+		if (ranking != null) ranking.remove(slot);
+		revealed.clear(slot);
+		shadow.clear(slot);
 	}
 
 	/**
@@ -121,19 +633,13 @@ public class HidePlayerList {
 	 * @return if anything happened (ie. player was visible and is now hidden)
 	 */
 	protected boolean hidePlayer(Player player) {
-		// Send the packet to all players
-		final ArrayList<Player> targets = new ArrayList<Player>();
-		targets.addAll(Bukkit.getOnlinePlayers());
-
-		// The target must be in their own tab list or they can't no-clip/use spectator tools
-		if(player.getGameMode() == GameMode.SPECTATOR) targets.remove(player);
+		long start = System.nanoTime();
 
 		// Add to list of hidden players
-		String name = player.getName();
-		boolean success = hiddenPlayers.add(name);
+		boolean success = setHidden(player.getUniqueId(), true);
 
-		// Send packet to targets
-		sendInfoPacket(player, false, targets);
+		queueHidden(player);
+		metrics.hidePlayer.recordSince(start);
 		return success;
 	}
 
@@ -144,13 +650,263 @@ public class HidePlayerList {
 	 * @return if anything happened (ie. player was hidden and is now visible)
 	 */
 	protected boolean showPlayer(Player player) {
-		String name = player.getName();
-		boolean success = hiddenPlayers.remove(name);
+		long start = System.nanoTime();
+		boolean success = setHidden(player.getUniqueId(), false);
 
-		sendInfoPacket(player, true);
+		queueShown(player);
+		metrics.showPlayer.recordSince(start);
 		return success;
 	}
 
+	/**
+	 * Hide or show many players at once, updating the hidden set only once.
+	 * All changes are sent together in the next batch of packets.
+	 * 
+	 * @param players the players to change
+	 * @param visible whether to show or hide the players
+	 * @return the players who changed
+	 */
+	protected List<Player> setVisible(Collection<? extends Player> players, boolean visible) {
+		List<UUID> uuids = new ArrayList<UUID>(players.size());
+		for (Player player : players) uuids.add(player.getUniqueId());
+		Set<UUID> changed = new HashSet<UUID>(setHidden(uuids, !visible, true));
+
+		List<Player> result = new ArrayList<Player>(changed.size());
+		for (Player player : players) {
+			if (!changed.contains(player.getUniqueId())) continue;
+			if (visible) queueShown(player);
+			else queueHidden(player);
+			result.add(player);
+		}
+		return result;
+	}
+
+	/**
+	 * Hide or show many UUIDs at once, from any thread. Players who aren't online are changed without sending anything.
+	 * 
+	 * @param uuids the UUIDs to change
+	 * @param visible whether to show or hide the UUIDs
+	 * @return a future completed with the UUIDs which changed, once their packets have been sent
+	 */
+	protected ListenableFuture<Set<UUID>> setVisibleAsync(Collection<UUID> uuids, final boolean visible) {
+		final List<UUID> copy = ImmutableList.copyOf(uuids);
+		final SettableFuture<Set<UUID>> future = SettableFuture.create();
+		pendingFutures.add(future);
+
+		requests.add(new Runnable() {
+			@Override
+			public void run() {
+				final Set<UUID> changed = ImmutableSet.copyOf(setHidden(copy, !visible, true));
+				for (UUID uuid : changed) {
+					PlayerSession session = sessions.get(uuid);
+					if (session == null) continue;
+					if (visible) queueShown(session.getPlayer());
+					else queueHidden(session.getPlayer());
+				}
+
+				// Queued after the changes above with the lowest priority, so it runs once they all have
+				queue.offer(VisibilityQueue.Priority.ADD, new Runnable() {
+					@Override
+					public void run() {
+						afterFlush.add(new Runnable() {
+							@Override
+							public void run() {
+								pendingFutures.remove(future);
+								future.set(changed);
+							}
+						});
+					}
+				});
+			}
+		});
+
+		// Nothing will run the request if the hook was cleaned up in the meantime
+		if (closed) failPendingFutures();
+		return future;
+	}
+
+	/**
+	 * Fail the futures of bulk changes which will never complete
+	 */
+	private void failPendingFutures() {
+		for (SettableFuture<Set<UUID>> future : pendingFutures) {
+			future.setException(new CancellationException("TabListHide was disabled"));
+			pendingFutures.remove(future);
+		}
+	}
+
+	/**
+	 * Retrieve all hidden UUIDs, online or not. Safe to call from any thread.
+	 * 
+	 * @return an immutable snapshot of the hidden UUIDs
+	 */
+	protected Set<UUID> getHiddenSnapshot() {
+		UuidSet hidden = hiddenPlayers;
+		Snapshot snapshot = this.snapshot;
+		if (snapshot.source != hidden) {
+			snapshot = new Snapshot(hidden);
+			this.snapshot = snapshot;
+		}
+		return snapshot.uuids;
+	}
+
+	/**
+	 * Take hidden players out of a server list ping's player count and sample.
+	 * Called for every ping, from the connection's thread - the sample is only rebuilt
+	 * when the hidden set or the online players have changed since the last ping.
+	 * 
+	 * @param ping the ping sent to the client
+	 * @return whether the ping was changed
+	 */
+	private boolean filterServerPing(WrappedServerPing ping) {
+		UuidSet hidden = hiddenPlayers;
+		int roster = this.roster;
+		PingSample sample = pingSample;
+		if (sample.source != hidden || sample.roster != roster) {
+			sample = new PingSample(hidden, roster, sessions.values());
+			pingSample = sample;
+		}
+
+		// Nothing to take out, so leave the server's own sample alone
+		if (sample.hidden == 0) return false;
+
+		ping.setPlayersOnline(Math.max(0, ping.getPlayersOnline() - sample.hidden));
+		if (ping.isPlayersVisible()) ping.setPlayers(sample.profiles);
+		return true;
+	}
+
+	/**
+	 * Queue the packets for a newly hidden player
+	 * 
+	 * @param player the hidden player
+	 */
+	private void queueHidden(final Player player) {
+		queue.offer(VisibilityQueue.Priority.REMOVE, new Runnable() {
+			@Override
+			public void run() {
+				if (ranking != null) ranking.updateTarget(slotOf(player.getUniqueId()));
+
+				// Skip if shown again in the meantime
+				if (player.isOnline() && !isVisible(player)) sendHidden(player);
+			}
+		});
+	}
+
+	/**
+	 * Queue the packets for a newly shown player
+	 * 
+	 * @param player the shown player
+	 */
+	private void queueShown(final Player player) {
+		queue.offer(VisibilityQueue.Priority.ADD, new Runnable() {
+			@Override
+			public void run() {
+				if (ranking != null) ranking.updateTarget(slotOf(player.getUniqueId()));
+
+				// Skip if hidden again in the meantime
+				if (player.isOnline() && isVisible(player)) sendInfoPacket(player, true);
+			}
+		});
+	}
+
+	/**
+	 * Remove a hidden player from the tab list of everyone who shouldn't see them
+	 * 
+	 * @param player the hidden player
+	 */
+	private void sendHidden(Player player) {
+		// Send the packet to all players, except those who can still see the target
+		final ArrayList<Player> targets = new ArrayList<Player>();
+		int slot = slotOf(player.getUniqueId());
+		for (PlayerSession viewer : sessions.values()) {
+			if (!revealed.get(viewer.getSlot(), slot)) targets.add(viewer.getPlayer());
+		}
+
+		// The target must be in their own tab list or they can't no-clip/use spectator tools
+		if(player.getGameMode() == GameMode.SPECTATOR) targets.remove(player);
+
+		// Send packet to targets
+		sendInfoPacket(player, false, targets);
+	}
+
+	/**
+	 * Change whether a UUID is hidden, publishing a new copy of the hidden set
+	 * 
+	 * @param uuid the UUID to change
+	 * @param hidden whether the UUID should be hidden
+	 * @return if anything changed
+	 */
+	private synchronized boolean setHidden(UUID uuid, boolean hidden) {
+		if (hiddenPlayers.contains(uuid) == hidden) return false;
+
+		UuidSet updated = hiddenPlayers.copy();
+		if (hidden) updated.add(uuid);
+		else updated.remove(uuid);
+		hiddenPlayers = updated;
+
+		if (store != null) store.append(uuid, hidden, updated);
+		if (sync != null) sync.changed(uuid, hidden);
+		return true;
+	}
+
+	/**
+	 * Change whether many UUIDs are hidden, publishing a single new copy of the hidden set
+	 * 
+	 * @param uuids the UUIDs to change
+	 * @param hidden whether the UUIDs should be hidden
+	 * @param local whether the change was made on this server, rather than received from another
+	 * @return the UUIDs which changed
+	 */
+	private synchronized List<UUID> setHidden(Collection<UUID> uuids, boolean hidden, boolean local) {
+		UuidSet updated = hiddenPlayers.copy();
+		List<UUID> changed = new ArrayList<UUID>();
+		for (UUID uuid : uuids) {
+			if (hidden ? updated.add(uuid) : updated.remove(uuid)) changed.add(uuid);
+		}
+		if (changed.isEmpty()) return changed;
+		hiddenPlayers = updated;
+
+		if (store != null) {
+			for (UUID uuid : changed) store.append(uuid, hidden, updated);
+		}
+		if (sync != null && local) {
+			for (UUID uuid : changed) sync.changed(uuid, hidden);
+		}
+		return changed;
+	}
+
+	/**
+	 * Change whether a viewer can see a player while that player is hidden.
+	 * Both players must be online, and the setting is forgotten when either leaves.
+	 * 
+	 * @param viewer the player whose tab list is affected
+	 * @param target the hidden player
+	 * @param visible whether the viewer can see the target
+	 * @return if anything changed
+	 */
+	protected boolean setRevealed(Player viewer, Player target, boolean visible) {
+		if (!revealed.set(slotOf(viewer.getUniqueId()), slotOf(target.getUniqueId()), visible)) return false;
+		if (ranking != null) ranking.update(slotOf(viewer.getUniqueId()), slotOf(target.getUniqueId()));
+
+		// Only hidden players need updating, visible ones are already shown to everybody
+		if (!isVisible(target) && !(viewer.equals(target) && target.getGameMode() == GameMode.SPECTATOR)
+				&& !(visible && isHiddenFrom(viewer.getUniqueId(), target.getUniqueId()))) {
+			batcher.queue(viewer, getInfoData(target), visible);
+		}
+		return true;
+	}
+
+	/**
+	 * Determine if a viewer can see a player while that player is hidden.
+	 * 
+	 * @param viewer the UUID of the player whose tab list is checked
+	 * @param target the UUID of the hidden player
+	 * @return whether the viewer can see the target
+	 */
+	protected boolean isRevealed(UUID viewer, UUID target) {
+		return revealed.get(slotOf(viewer), slotOf(target));
+	}
+
 	/**
 	 * Fixes a bug where Spectators (gamemode 3) can't no-clip or use tools.
 	 * - Visible players are ignored.
@@ -162,25 +918,112 @@ public class HidePlayerList {
 	protected void fixPlayer(Player player) {
 		// Ignore visible players
 		if(isVisible(player)) return;
+		long start = System.nanoTime();
 
-		// Packet will be sent to the target player only
-		ArrayList<Player> targets = new ArrayList<Player>();
-		targets.add(player);
-		
-		// Ignore the packet in the listener
-		fixedPlayers.add(player.getName());
+		// Show spectators in their own tab list, hide all other players in all tab lists
+		// The packet is sent to the target player only, and is passed through by the listener like all of ours
+		batcher.sendNow(player, getInfoData(player), player.getGameMode() == GameMode.SPECTATOR);
+		metrics.fixPlayer.recordSince(start);
+	}
 
-		// Show spectators in their own tab list
-		if(player.getGameMode() == GameMode.SPECTATOR) {
-			sendInfoPacket(player, true, targets);
-		}
-		// Hide all other players in all tab lists
-		else {
-			sendInfoPacket(player, false, targets);
-		}
+	/**
+	 * Fix a player after 10 ticks, once their new game mode has taken effect.
+	 * Fixes already scheduled for the same player are merged.
+	 * 
+	 * @param player the player to fix
+	 */
+	protected void scheduleFix(final Player player) {
+		wheel.schedule(new TaskKey("fix", player.getUniqueId(), null), 10, new Runnable() {
+			@Override
+			public void run() {
+				queue.offer(VisibilityQueue.Priority.FIX, new Runnable() {
+					@Override
+					public void run() {
+						if (player.isOnline()) fixPlayer(player);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Remove a hidden player from a single receiver's tab list after 10 ticks,
+	 * or sooner if they are spawned for the receiver before then - see {@link #spawned(Player, UUID)}.
+	 * Removals already scheduled for the same receiver and target are merged.
+	 * 
+	 * @param receiver the player whose tab list is updated
+	 * @param target the entry of the hidden player to remove
+	 */
+	private void scheduleRemoval(final Player receiver, final PlayerInfoData target) {
+		// May be called from an asynchronous listener, the removal itself runs on the main thread
+		wheel.schedule(new TaskKey("remove", receiver.getUniqueId(), target.getProfile().getUUID()), 10, new Runnable() {
+			@Override
+			public void run() {
+				queue.offer(VisibilityQueue.Priority.REMOVE, new Runnable() {
+					@Override
+					public void run() {
+						sendRemoval(receiver, target);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Bring forward the removal of a hidden player from a receiver's tab list, now the receiver
+	 * has been sent the player's entity and no longer needs the entry to show their skin.
+	 * Called from the spawn listener, which may run off the main thread.
+	 * 
+	 * @param receiver the player the entity was spawned for
+	 * @param target the UUID of the spawned player
+	 */
+	private void spawned(Player receiver, UUID target) {
+		if (target == null) return;
+
+		// Sent after the spawn packet, so the client has read the profile by the time it arrives
+		if (wheel.expedite(new TaskKey("remove", receiver.getUniqueId(), target))) metrics.removalsEarly.increment();
+	}
 
-		// Unignore the packet in the listener again
-		fixedPlayers.remove(player.getName());
+	/**
+	 * Send a removal scheduled by {@link #scheduleRemoval(Player, PlayerInfoData)}
+	 * 
+	 * @param receiver the player whose tab list is updated
+	 * @param target the entry of the hidden player to remove
+	 */
+	private void sendRemoval(Player receiver, PlayerInfoData target) {
+		UUID uuid = target.getProfile().getUUID();
+
+		// Things may have changed in the meantime
+		if (!isHiddenFrom(receiver.getUniqueId(), uuid) || !receiver.isOnline()) return;
+
+		// The target must be in their own tab list or they can't no-clip/use spectator tools
+		if (receiver.getUniqueId().equals(uuid) && receiver.getGameMode() == GameMode.SPECTATOR) return;
+
+		batcher.queue(receiver, target, false);
+	}
+
+	/**
+	 * Resend a viewer's whole tab list as it should be, ignoring what it is believed to contain.
+	 * Fixes any drift, eg. after a packet was lost or rewritten by another plugin.
+	 * 
+	 * @param viewer the player whose tab list is reconciled
+	 * @return the number of entries resent
+	 */
+	protected int reconcile(Player viewer) {
+		int viewerSlot = slotOf(viewer.getUniqueId());
+		if (viewerSlot < 0) return 0;
+
+		int resent = 0;
+		for (PlayerSession target : sessions.values()) {
+			// The target must be in their own tab list or they can't no-clip/use spectator tools
+			boolean hidden = isHiddenFrom(viewer.getUniqueId(), target.getUniqueId())
+					&& !(target.getPlayer().equals(viewer) && viewer.getGameMode() == GameMode.SPECTATOR);
+
+			shadow.update(viewerSlot, target.getSlot(), ShadowTabList.UNKNOWN);
+			batcher.queue(viewer, getInfoData(target.getPlayer()), !hidden);
+			resent++;
+		}
+		return resent;
 	}
 
 	/**
@@ -190,30 +1033,39 @@ public class HidePlayerList {
 	 * @return whether the player is visible
 	 */
 	protected boolean isVisible(Player player) {
-		return !hiddenPlayers.contains(player.getName());
+		return !hiddenPlayers.contains(player.getUniqueId());
+	}
+
+	/**
+	 * Determine if a given player is visible in a viewer's player list.
+	 * 
+	 * @param viewer the player whose tab list is checked
+	 * @param target the player to check
+	 * @return whether the target is visible to the viewer
+	 */
+	protected boolean isVisible(Player viewer, Player target) {
+		return isVisible(target) || isRevealed(viewer.getUniqueId(), target.getUniqueId());
 	}
 
 	/**
-	 * Retrieve the current ping value of a player
+	 * Retrieve the ping value of a player from this tick's snapshot
 	 * 
 	 * @param player the player to retrieve
 	 * @return the ping value
 	 */
 	private int getPlayerPing(Player player) {
-		BukkitUnwrapper unwrapper = new BukkitUnwrapper();
-		Object entity = unwrapper.unwrapItem(player);
-
-		// Next, get the "ping" field
-		if (pingField == null) {
-			pingField = FuzzyReflection.fromObject(entity).getFieldByName("ping");
-		}
+		return pings.get(slotOf(player.getUniqueId()));
+	}
 
-		try {
-			return (Integer) FieldUtils.readField(pingField, entity);
-		} catch (IllegalAccessException e) {
-			e.printStackTrace();
-			return 0;
-		}
+	/**
+	 * Retrieve the slot of an online player
+	 * 
+	 * @param uuid the player's UUID
+	 * @return the player's slot, or -1 if they aren't online
+	 */
+	protected int slotOf(UUID uuid) {
+		PlayerSession session = sessions.get(uuid);
+		return session != null ? session.getSlot() : -1;
 	}
 
 	/**
@@ -231,42 +1083,170 @@ public class HidePlayerList {
 	 * 
 	 * @param player the player affected
 	 * @param visible whether to show or hide the player
-	 * @param targetOnly only send the packet to the target player
+	 * @param targets the players to send the packet to, or null for all online players
 	 */
 	private void sendInfoPacket(Player player, boolean visible, List<Player> targets) {
-		// BUILD
-		WrappedPlayServerPlayerInfo packet = new WrappedPlayServerPlayerInfo();
-
-		// Packet Action
-		packet.setAction(visible ? PlayerInfoAction.ADD_PLAYER : PlayerInfoAction.REMOVE_PLAYER);
+		long start = System.nanoTime();
+		PlayerInfoData data = getInfoData(player);
 
-		// Packet Data
-		List<PlayerInfoData> list = packet.getData();
-		list.add(new PlayerInfoData(WrappedGameProfile.fromPlayer(player), getPlayerPing(player), NativeGameMode.fromBukkit(player.getGameMode()), WrappedChatComponent.fromText(player.getName())));
-		packet.setData(list);
-
-		// SEND to targets, or all online players
+		// QUEUE for targets, or all online players - sent in one packet per receiver at the end of the tick
 		for(Player p : targets != null ? targets : Bukkit.getOnlinePlayers()) {
-			packet.sendPacket(p);
+			// Don't list players for viewers they're still hidden from, eg. when out of range
+			if (visible && isHiddenFrom(p.getUniqueId(), player.getUniqueId())) continue;
+			batcher.queue(p, data, visible);
 		}
+		metrics.sendInfoPacket.recordSince(start);
 	}
 
 	/**
-	 * Retrieve all hidden players
+	 * Build the player list entry for a player
+	 * 
+	 * @param player the player to describe
+	 * @return the player list entry
+	 */
+	private PlayerInfoData getInfoData(Player player) {
+		PlayerSession session = sessions.get(player.getUniqueId());
+		if (session != null) return session.getInfoData(pings.get(session.getSlot()));
+
+		// Not tracked yet
+		return new PlayerInfoData(WrappedGameProfile.fromPlayer(player), getPlayerPing(player), NativeGameMode.fromBukkit(player.getGameMode()), WrappedChatComponent.fromText(player.getName()));
+	}
+
+	/**
+	 * Retrieve all hidden players who are online
 	 * 
 	 * @return the hidden players' names
 	 */
 	protected Set<String> getHiddenPlayers() {
-		return Collections.unmodifiableSet(hiddenPlayers);
+		UuidSet hidden = hiddenPlayers;
+		Set<String> names = new HashSet<String>();
+		for (PlayerSession session : sessions.values()) {
+			if (hidden.contains(session.getUniqueId())) names.add(session.getPlayer().getName());
+		}
+		return Collections.unmodifiableSet(names);
+	}
+
+	/**
+	 * Retrieve the packet counts and timings
+	 * 
+	 * @return the metrics
+	 */
+	protected TlhMetrics getMetrics() {
+		return metrics;
 	}
 
 	/**
 	 * Clean up this hook by removing the listener
 	 */
 	protected void cleanupAll() {
+		// Requests which haven't been sent won't be now
+		closed = true;
+		requests.clear();
+		afterFlush.clear();
+		failPendingFutures();
+		if (sync != null) {
+			sync.close();
+			sync = null;
+		}
+		if (store != null) {
+			store.close();
+			store = null;
+		}
+		if (tickTask != null) {
+			tickTask.cancel();
+			tickTask = null;
+		}
+		if (asyncHandler != null) {
+			manager.getAsynchronousManager().unregisterAsyncHandler(asyncHandler);
+			asyncHandler = null;
+		}
+		if (netty != null) {
+			for (PlayerSession session : sessions.values()) netty.uninject(session.getPlayer());
+			netty = null;
+		}
 		if (overrideListener != null) {
 			manager.removePacketListener(overrideListener);
 			overrideListener = null;
 		}
+		if (spawnListener != null) {
+			manager.removePacketListener(spawnListener);
+			spawnListener = null;
+		}
+		if (pingListener != null) {
+			manager.removePacketListener(pingListener);
+			pingListener = null;
+		}
+	}
+
+	/**
+	 * An immutable copy of a hidden set, remembering which one it was copied from
+	 */
+	private static final class Snapshot {
+		private final UuidSet source;
+		private final Set<UUID> uuids;
+
+		private Snapshot(UuidSet source) {
+			this.source = source;
+			this.uuids = ImmutableSet.copyOf(source.toList());
+		}
+	}
+
+	/**
+	 * The online players shown in the server list, remembering which hidden set and roster it was built from
+	 */
+	private static final class PingSample {
+		// As many players as the vanilla server samples
+		private static final int SIZE = 12;
+
+		private final UuidSet source;
+		private final int roster;
+		private final int hidden;
+		private final List<WrappedGameProfile> profiles;
+
+		private PingSample(UuidSet source, int roster, Collection<PlayerSession> online) {
+			this.source = source;
+			this.roster = roster;
+
+			int hidden = 0;
+			ImmutableList.Builder<WrappedGameProfile> profiles = ImmutableList.builder();
+			int size = 0;
+			for (PlayerSession session : online) {
+				if (source.contains(session.getUniqueId())) {
+					hidden++;
+				} else if (size < SIZE) {
+					profiles.add(session.getProfile());
+					size++;
+				}
+			}
+			this.hidden = hidden;
+			this.profiles = profiles.build();
+		}
+	}
+
+	/**
+	 * Identifies a delayed task, so duplicates can be merged
+	 */
+	private static final class TaskKey {
+		private final String type;
+		private final UUID first;
+		private final UUID second;
+
+		private TaskKey(String type, UUID first, UUID second) {
+			this.type = type;
+			this.first = first;
+			this.second = second;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof TaskKey)) return false;
+			TaskKey other = (TaskKey) obj;
+			return type.equals(other.type) && Objects.equal(first, other.first) && Objects.equal(second, other.second);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hashCode(type, first, second);
+		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,178 @@
+/*
+ * TabListHide - Hide or show players in the tab player list
+ * Copyright (C) 2017 pgmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.pgmann.tablisthide;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.bukkit.entity.Player;
+
+import com.comphenix.protocol.ProtocolManager;
+import com.comphenix.protocol.wrappers.EnumWrappers.PlayerInfoAction;
+import com.comphenix.protocol.wrappers.PlayerInfoData;
+
+/**
+ * Collects the player list changes made during a tick and sends them as a
+ * single PLAYER_INFO packet per action to each receiver, flushed once per tick.
+ * Changes the receiver's tab list already reflects are dropped.
+ *
+ * @author pgmann
+ */
+public class InfoPacketBatcher {
+	// Pending changes for each receiver
+	private Map<Player, Batch> pending = new LinkedHashMap<Player, Batch>();
+
+	private ProtocolManager manager;
+	private TlhMetrics metrics;
+	private ShadowTabList shadow;
+	private Set<Object> ownPackets;
+
+	/**
+	 * @param manager sends the packets
+	 * @param metrics counts the packets sent
+	 * @param shadow what each client's tab list contains
+	 * @param ownPackets the set each packet's handle is added to before it is sent, so the listener can recognise it
+	 */
+	protected InfoPacketBatcher(ProtocolManager manager, TlhMetrics metrics, ShadowTabList shadow, Set<Object> ownPackets) {
+		this.manager = manager;
+		this.metrics = metrics;
+		this.shadow = shadow;
+		this.ownPackets = ownPackets;
+	}
+
+	/**
+	 * Queue a player list change, to be sent on the next {@link #flush()}.
+	 * A later change for the same target replaces an earlier one.
+	 *
+	 * @param receiver the player whose tab list is updated
+	 * @param data the entry to add or remove
+	 * @param visible whether the entry is added or removed
+	 */
+	protected void queue(Player receiver, PlayerInfoData data, boolean visible) {
+		Batch batch = pending.get(receiver);
+		if (batch == null) {
+			batch = new Batch();
+			pending.put(receiver, batch);
+		}
+		if (batch.put(data, visible)) metrics.changesDropped.increment();
+	}
+
+	/**
+	 * Send a player list change straight away, discarding any queued change for the same target.
+	 *
+	 * @param receiver the player whose tab list is updated
+	 * @param data the entry to add or remove
+	 * @param visible whether the entry is added or removed
+	 */
+	protected void sendNow(Player receiver, PlayerInfoData data, boolean visible) {
+		Batch batch = pending.get(receiver);
+		if (batch != null && batch.discard(data.getProfile().getUUID())) metrics.changesDropped.increment();
+
+		List<PlayerInfoData> list = new ArrayList<PlayerInfoData>(1);
+		list.add(data);
+		list = changing(receiver, list, visible);
+		if (!list.isEmpty()) send(receiver, visible ? PlayerInfoAction.ADD_PLAYER : PlayerInfoAction.REMOVE_PLAYER, list);
+	}
+
+	/**
+	 * Send every queued change, one packet per action per receiver
+	 */
+	protected void flush() {
+		if (pending.isEmpty()) return;
+
+		Map<Player, Batch> batches = pending;
+		pending = new LinkedHashMap<Player, Batch>();
+
+		for (Map.Entry<Player, Batch> entry : batches.entrySet()) {
+			Player receiver = entry.getKey();
+			if (!receiver.isOnline()) continue;
+
+			Batch batch = entry.getValue();
+			List<PlayerInfoData> remove = changing(receiver, batch.remove.values(), false);
+			List<PlayerInfoData> add = changing(receiver, batch.add.values(), true);
+			if (!remove.isEmpty()) send(receiver, PlayerInfoAction.REMOVE_PLAYER, remove);
+			if (!add.isEmpty()) send(receiver, PlayerInfoAction.ADD_PLAYER, add);
+		}
+	}
+
+	/**
+	 * Record changes in the receiver's shadow tab list, leaving out those it already reflects
+	 *
+	 * @param receiver the player whose tab list is updated
+	 * @param data the entries to add or remove
+	 * @param visible whether the entries are added or removed
+	 * @return the entries which change the tab list
+	 */
+	private List<PlayerInfoData> changing(Player receiver, Collection<PlayerInfoData> data, boolean visible) {
+		UUID receiverId = receiver.getUniqueId();
+		byte state = visible ? ShadowTabList.LISTED : ShadowTabList.ABSENT;
+		List<PlayerInfoData> changing = new ArrayList<PlayerInfoData>(data.size());
+		for (PlayerInfoData entry : data) {
+			if (shadow.update(receiverId, entry.getProfile().getUUID(), state)) changing.add(entry);
+			else metrics.changesRedundant.increment();
+		}
+		return changing;
+	}
+
+	private void send(Player receiver, PlayerInfoAction action, List<PlayerInfoData> data) {
+		WrappedPlayServerPlayerInfo packet = new WrappedPlayServerPlayerInfo();
+		packet.setAction(action);
+		packet.setData(data);
+		ownPackets.add(packet.getHandle().getHandle());
+		try {
+			manager.sendServerPacket(receiver, packet.getHandle());
+		} catch (InvocationTargetException e) {
+			throw new RuntimeException("Cannot send packet.", e);
+		}
+		metrics.packetsGenerated.increment();
+	}
+
+	/**
+	 * The changes queued for a single receiver, keyed by the target's UUID
+	 */
+	private static class Batch {
+		private Map<UUID, PlayerInfoData> add = new LinkedHashMap<UUID, PlayerInfoData>();
+		private Map<UUID, PlayerInfoData> remove = new LinkedHashMap<UUID, PlayerInfoData>();
+
+		/**
+		 * @return whether an earlier change was replaced
+		 */
+		private boolean put(PlayerInfoData data, boolean visible) {
+			UUID uuid = data.getProfile().getUUID();
+			if (visible) {
+				return (remove.remove(uuid) != null) | (add.put(uuid, data) != null);
+			} else {
+				return (add.remove(uuid) != null) | (remove.put(uuid, data) != null);
+			}
+		}
+
+		/**
+		 * @return whether a change was discarded
+		 */
+		private boolean discard(UUID uuid) {
+			return (add.remove(uuid) != null) | (remove.remove(uuid) != null);
+		}
+	}
+}
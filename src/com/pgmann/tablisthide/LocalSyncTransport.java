@@ -0,0 +1,75 @@
+/*
+ * TabListHide - Hide or show players in the tab player list
+ * Copyright (C) 2017 pgmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.pgmann.tablisthide;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Delivers messages between transports on the same channel in this JVM, for local testing.
+ *
+ * @author pgmann
+ */
+public class LocalSyncTransport implements SyncTransport {
+	private static final ConcurrentMap<String, List<LocalSyncTransport>> CHANNELS = new ConcurrentHashMap<String, List<LocalSyncTransport>>();
+
+	private String channel;
+	private volatile Receiver receiver;
+
+	/**
+	 * @param channel the channel to join
+	 */
+	public LocalSyncTransport(String channel) {
+		this.channel = channel;
+	}
+
+	@Override
+	public void start(Receiver receiver) {
+		this.receiver = receiver;
+
+		List<LocalSyncTransport> members = CHANNELS.get(channel);
+		if (members == null) {
+			List<LocalSyncTransport> created = new CopyOnWriteArrayList<LocalSyncTransport>();
+			members = CHANNELS.putIfAbsent(channel, created);
+			if (members == null) members = created;
+		}
+		members.add(this);
+		receiver.connected();
+	}
+
+	@Override
+	public void publish(byte[] message) {
+		List<LocalSyncTransport> members = CHANNELS.get(channel);
+		if (members == null) return;
+
+		for (LocalSyncTransport member : members) {
+			Receiver target = member.receiver;
+			if (member != this && target != null) target.receive(message.clone());
+		}
+	}
+
+	@Override
+	public void close() {
+		List<LocalSyncTransport> members = CHANNELS.get(channel);
+		if (members != null) members.remove(this);
+		receiver = null;
+	}
+}
@@ -0,0 +1,239 @@
+/*
+ * TabListHide - Hide or show players in the tab player list
+ * Copyright (C) 2017 pgmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.pgmann.tablisthide;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bukkit.entity.Player;
+
+import com.comphenix.protocol.events.PacketContainer;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
+
+/**
+ * Filters PLAYER_INFO packets in each player's Netty pipeline, instead of through a ProtocolLib listener.
+ * <p>
+ * Packets are read through method handles from {@link Reflection}, resolved once, so most packets - latency updates, and lists with
+ * nobody hidden - are passed on without allocating anything. Only packets with a hidden entry are copied
+ * into a {@link PacketContainer} and rewritten by {@link HidePlayerList#filterPlayerInfo(Player, PacketContainer)}.
+ *
+ * @author pgmann
+ */
+public class NettyPlayerInfoEngine {
+	private static final String HANDLER_NAME = "tablisthide_player_info";
+
+	private HidePlayerList hpl;
+	private TlhMetrics metrics;
+	private Logger logger;
+
+	/**
+	 * Resolve the packet accessors for this server version
+	 *
+	 * @param hpl the player list hook to filter with
+	 * @param metrics counts and times the packets filtered
+	 * @param logger the logger to report errors to
+	 * @throws IllegalStateException if the server's packets couldn't be found
+	 */
+	protected NettyPlayerInfoEngine(HidePlayerList hpl, TlhMetrics metrics, Logger logger) {
+		this.hpl = hpl;
+		this.metrics = metrics;
+		this.logger = logger;
+
+		try {
+			Handles.resolve();
+		} catch (LinkageError e) {
+			// Reflection reports missing classes and fields as runtime exceptions too, which fail the class's initialisation
+			throw new IllegalStateException("Cannot find the player info packet on this server version.", e.getCause() != null ? e.getCause() : e);
+		}
+	}
+
+	/**
+	 * Start filtering packets sent to a player
+	 *
+	 * @param player the player who joined
+	 */
+	protected void inject(final Player player) {
+		try {
+			ChannelPipeline pipeline = getChannel(player).pipeline();
+			if (pipeline.get(HANDLER_NAME) != null) pipeline.remove(HANDLER_NAME);
+
+			// Before the packet handler, so packets are seen before they are encoded
+			pipeline.addBefore("packet_handler", HANDLER_NAME, new ChannelOutboundHandlerAdapter() {
+				@Override
+				public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+					if (msg.getClass() == Handles.PACKET_CLASS) msg = filter(player, msg);
+					ctx.write(msg, promise);
+				}
+			});
+		} catch (RuntimeException e) {
+			// Eg. fake players without a connection
+			logger.log(Level.WARNING, "Cannot filter packets sent to " + player.getName(), e);
+		}
+	}
+
+	/**
+	 * Stop filtering packets sent to a player
+	 *
+	 * @param player the player to stop filtering for
+	 */
+	protected void uninject(Player player) {
+		try {
+			Channel channel = getChannel(player);
+			if (channel.pipeline().get(HANDLER_NAME) != null) channel.pipeline().remove(HANDLER_NAME);
+		} catch (NoSuchElementException e) {
+			// Removed in the meantime
+		} catch (RuntimeException e) {
+			// The connection may already be gone
+		}
+	}
+
+	/**
+	 * Filter a PLAYER_INFO packet on its way to a receiver
+	 *
+	 * @param receiver the player the packet is being sent to
+	 * @param packet the NMS packet
+	 * @return the packet to send instead, which is the same packet unless an entry was hidden
+	 */
+	protected Object filter(Player receiver, Object packet) {
+		// Our own packets are already correct for their receiver
+		if (hpl.isOwnPacket(packet)) return packet;
+		long start = System.nanoTime();
+
+		try {
+			Object action = (Object) Handles.ACTION.invokeExact(packet);
+			if (action != Handles.ADD_PLAYER && action != Handles.REMOVE_PLAYER) return packet;
+			boolean adding = action == Handles.ADD_PLAYER;
+
+			List<?> entries = (List<?>) (Object) Handles.ENTRIES.invokeExact(packet);
+			UUID receiverId = receiver.getUniqueId();
+			int receiverSlot = hpl.slotOf(receiverId);
+
+			// Record what's sent, stopping at the first entry which needs hidden
+			for (int i = 0; i < entries.size(); i++) {
+				UUID uuid = (UUID) (Object) Handles.PROFILE_ID.invokeExact(entries.get(i));
+				if (uuid == null) continue;
+				if (adding && hpl.isHiddenFrom(receiverId, uuid)) return rewrite(receiver, packet);
+				hpl.recordEntry(receiverSlot, uuid, adding);
+			}
+			return packet;
+		} catch (Throwable e) {
+			logger.log(Level.WARNING, "Cannot filter a player info packet for " + receiver.getName(), e);
+			return packet;
+		} finally {
+			metrics.listener.recordSince(start);
+		}
+	}
+
+	/**
+	 * Rewrite a copy of the packet, since the same packet may be sent to several players
+	 */
+	private Object rewrite(Player receiver, Object packet) {
+		PacketContainer filtered = hpl.filterPlayerInfo(receiver, PacketContainer.fromPacket(packet));
+		metrics.packetsRewritten.increment();
+		return filtered.getHandle();
+	}
+
+	private Channel getChannel(Player player) {
+		try {
+			return (Channel) Handles.CHANNEL.invokeExact(player);
+		} catch (Throwable e) {
+			throw new RuntimeException("Cannot find the connection of " + player.getName(), e);
+		}
+	}
+
+	/**
+	 * Handles for this server version, resolved once and held in constants so the JIT can inline them.
+	 * Initialising the class fails if the server's packets couldn't be found.
+	 */
+	private static final class Handles {
+		// (Player) -> Channel
+		static final MethodHandle CHANNEL;
+
+		// The packet class, and (Object) -> Object accessors for its fields
+		static final Class<?> PACKET_CLASS;
+		static final MethodHandle ACTION;
+		static final MethodHandle ENTRIES;
+		static final MethodHandle PROFILE_ID;
+		static final Object ADD_PLAYER;
+		static final Object REMOVE_PLAYER;
+
+		static {
+			try {
+				MethodHandles.Lookup lookup = MethodHandles.lookup();
+				MethodType accessor = MethodType.methodType(Object.class, Object.class);
+
+				// CraftPlayer -> EntityPlayer -> PlayerConnection -> NetworkManager -> Channel
+				Class<?> craftPlayer = Reflection.getCraftBukkitClass("entity.CraftPlayer");
+				MethodHandle handle = lookup.unreflect(craftPlayer.getMethod("getHandle"));
+				Field connection = Reflection.getMinecraftClass("EntityPlayer").getField("playerConnection");
+				Field network = connection.getType().getField("networkManager");
+				MethodHandle channel = Reflection.getFieldGetter(network.getType(), Channel.class, 0);
+				CHANNEL = MethodHandles.filterReturnValue(MethodHandles.filterReturnValue(MethodHandles.filterReturnValue(
+						handle, lookup.unreflectGetter(connection)), lookup.unreflectGetter(network)), channel)
+						.asType(MethodType.methodType(Channel.class, Player.class));
+
+				// PacketPlayOutPlayerInfo - its action, and list of entries
+				PACKET_CLASS = Reflection.getMinecraftClass("PacketPlayOutPlayerInfo");
+				MethodHandle action = Reflection.getFieldGetter(PACKET_CLASS, Enum.class, 0);
+				ACTION = action.asType(accessor);
+				ENTRIES = Reflection.getFieldGetter(PACKET_CLASS, List.class, 0).asType(accessor);
+				ADD_PLAYER = constant(action.type().returnType(), "ADD_PLAYER");
+				REMOVE_PLAYER = constant(action.type().returnType(), "REMOVE_PLAYER");
+
+				// Each entry's GameProfile, then its UUID
+				Class<?> profileClass = Class.forName("com.mojang.authlib.GameProfile");
+				MethodHandle profile = null;
+				for (Class<?> inner : PACKET_CLASS.getDeclaredClasses()) {
+					try {
+						profile = Reflection.getFieldGetter(inner, profileClass, 0);
+					} catch (IllegalArgumentException e) {
+						// Not the entry class
+					}
+				}
+				if (profile == null) throw new NoSuchFieldException("No GameProfile in the entries of " + PACKET_CLASS.getName());
+				PROFILE_ID = MethodHandles.filterReturnValue(profile, lookup.unreflect(profileClass.getMethod("getId"))).asType(accessor);
+			} catch (ReflectiveOperationException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		static void resolve() {
+			// Initialising the class resolves the handles
+		}
+	}
+
+	private static Object constant(Class<?> enumClass, String name) throws NoSuchFieldException {
+		for (Object constant : enumClass.getEnumConstants()) {
+			if (((Enum<?>) constant).name().equals(name)) return constant;
+		}
+		throw new NoSuchFieldException("No " + name + " in " + enumClass.getName());
+	}
+}
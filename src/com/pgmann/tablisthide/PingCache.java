@@ -0,0 +1,140 @@
+/*
+ * TabListHide - Hide or show players in the tab player list
+ * Copyright (C) 2017 pgmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.pgmann.tablisthide;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+import org.bukkit.entity.Player;
+
+/**
+ * Keeps a snapshot of every online player's ping, by player slot, refreshed each tick.
+ *
+ * @author pgmann
+ * @see PlayerSlots
+ */
+public class PingCache {
+	// Read pings some other way, eg. from fake players, or null to use the server's
+	private final MethodHandle pingGetter;
+
+	private volatile int[] pings = new int[0];
+
+	/**
+	 * Read pings from the server
+	 *
+	 * @throws IllegalStateException if the server's ping can't be found
+	 */
+	protected PingCache() {
+		this(null);
+
+		// Fail now rather than on the first read
+		try {
+			ServerPing.resolve();
+		} catch (ExceptionInInitializerError e) {
+			throw (IllegalStateException) e.getCause();
+		}
+	}
+
+	/**
+	 * Read pings some other way, eg. from fake players
+	 *
+	 * @param pingGetter (Player) -> int
+	 */
+	protected PingCache(MethodHandle pingGetter) {
+		this.pingGetter = pingGetter;
+	}
+
+	/**
+	 * Retrieve a player's ping from the last snapshot
+	 *
+	 * @param slot the player's slot
+	 * @return the ping value, or 0 if unknown
+	 */
+	public int get(int slot) {
+		int[] pings = this.pings;
+		return slot >= 0 && slot < pings.length ? pings[slot] : 0;
+	}
+
+	/**
+	 * Update the snapshot with a player's current ping
+	 *
+	 * @param slot the player's slot
+	 * @param player the player to read
+	 */
+	public void update(int slot, Player player) {
+		if (slot < 0) return;
+		int[] pings = this.pings;
+		if (slot >= pings.length) {
+			pings = Arrays.copyOf(pings, Math.max(slot + 1, pings.length * 2));
+			this.pings = pings;
+		}
+		pings[slot] = read(player);
+	}
+
+	/**
+	 * Read a player's current ping from the server
+	 *
+	 * @param player the player to read
+	 * @return the ping value
+	 */
+	public int read(Player player) {
+		try {
+			if (pingGetter == null) return (int) ServerPing.GETTER.invokeExact(player);
+			return (int) pingGetter.invokeExact(player);
+		} catch (Throwable e) {
+			throw new RuntimeException("Cannot read ping of " + player.getName(), e);
+		}
+	}
+
+	/**
+	 * The server's ping getter, resolved on first use and held in a constant so the JIT can inline it
+	 */
+	private static final class ServerPing {
+		// (Player) -> int
+		static final MethodHandle GETTER = resolveGetter();
+
+		static void resolve() {
+			// Initialising the class resolves the getter
+		}
+	}
+
+	private static MethodHandle resolveGetter() {
+		MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+		MethodType type = MethodType.methodType(int.class, Player.class);
+
+		// Newer servers have it in the API
+		try {
+			return lookup.findVirtual(Player.class, "getPing", MethodType.methodType(int.class)).asType(type);
+		} catch (NoSuchMethodException | IllegalAccessException e) {
+			// Fall back to the NMS field
+		}
+
+		try {
+			Method getHandle = Reflection.getCraftBukkitClass("entity.CraftPlayer").getMethod("getHandle");
+			MethodHandle handle = lookup.unreflect(getHandle);
+			MethodHandle ping = lookup.unreflectGetter(getHandle.getReturnType().getField("ping"));
+			return MethodHandles.filterReturnValue(handle, ping).asType(type);
+		} catch (ReflectiveOperationException | IllegalArgumentException e) {
+			throw new IllegalStateException("Cannot find the player ping on this server version.", e);
+		}
+	}
+}
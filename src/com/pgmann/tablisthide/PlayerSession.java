@@ -0,0 +1,117 @@
+/*
+ * TabListHide - Hide or show players in the tab player list
+ * Copyright (C) 2017 pgmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.pgmann.tablisthide;
+
+import java.util.UUID;
+
+import org.bukkit.GameMode;
+import org.bukkit.entity.Player;
+
+import com.comphenix.protocol.wrappers.EnumWrappers.NativeGameMode;
+import com.comphenix.protocol.wrappers.PlayerInfoData;
+import com.comphenix.protocol.wrappers.WrappedChatComponent;
+import com.comphenix.protocol.wrappers.WrappedGameProfile;
+
+/**
+ * What TabListHide knows about an online player, built when they join so
+ * the packet paths don't need to look them up or rewrap them each time.
+ *
+ * @author pgmann
+ */
+public class PlayerSession {
+	private final Player player;
+	private final UUID uuid;
+	private final int slot;
+
+	// Wrapped once per session
+	private final WrappedGameProfile profile;
+	private final WrappedChatComponent displayName;
+	private volatile NativeGameMode gameMode;
+
+	// Rebuilt when the ping or game mode changes
+	private volatile PlayerInfoData infoData;
+
+	/**
+	 * @param player the player who joined
+	 * @param slot the player's slot
+	 * @param profile the player's wrapped profile, with their skin
+	 */
+	protected PlayerSession(Player player, int slot, WrappedGameProfile profile) {
+		this.player = player;
+		this.uuid = player.getUniqueId();
+		this.slot = slot;
+		this.profile = profile;
+		this.displayName = WrappedChatComponent.fromText(player.getName());
+		this.gameMode = NativeGameMode.fromBukkit(player.getGameMode());
+	}
+
+	/**
+	 * @return the player
+	 */
+	public Player getPlayer() {
+		return player;
+	}
+
+	/**
+	 * @return the player's UUID
+	 */
+	public UUID getUniqueId() {
+		return uuid;
+	}
+
+	/**
+	 * @return the player's slot
+	 * @see PlayerSlots
+	 */
+	public int getSlot() {
+		return slot;
+	}
+
+	/**
+	 * @return the player's wrapped profile
+	 */
+	public WrappedGameProfile getProfile() {
+		return profile;
+	}
+
+	/**
+	 * Update the cached game mode, eg. when the player's game mode is changed
+	 *
+	 * @param gameMode the new game mode
+	 */
+	public void setGameMode(GameMode gameMode) {
+		this.gameMode = NativeGameMode.fromBukkit(gameMode);
+		this.infoData = null;
+	}
+
+	/**
+	 * Retrieve the player's tab list entry, rebuilding it only if something changed
+	 *
+	 * @param ping the player's current ping
+	 * @return the tab list entry
+	 */
+	public PlayerInfoData getInfoData(int ping) {
+		PlayerInfoData data = infoData;
+		if (data == null || data.getPing() != ping) {
+			data = new PlayerInfoData(profile, ping, gameMode, displayName);
+			infoData = data;
+		}
+		return data;
+	}
+}
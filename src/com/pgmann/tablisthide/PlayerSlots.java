@@ -0,0 +1,75 @@
+/*
+ * TabListHide - Hide or show players in the tab player list
+ * Copyright (C) 2017 pgmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.pgmann.tablisthide;
+
+import java.util.BitSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Gives each online player a small, dense slot number, reused once they leave.
+ *
+ * @author pgmann
+ */
+public class PlayerSlots {
+	private ConcurrentMap<UUID, Integer> slots = new ConcurrentHashMap<UUID, Integer>();
+	private BitSet used = new BitSet();
+
+	/**
+	 * Assign a slot to a player, or retrieve the slot they already have
+	 *
+	 * @param uuid the player's UUID
+	 * @return the player's slot
+	 */
+	public synchronized int acquire(UUID uuid) {
+		Integer slot = slots.get(uuid);
+		if (slot != null) return slot;
+
+		int free = used.nextClearBit(0);
+		used.set(free);
+		slots.put(uuid, free);
+		return free;
+	}
+
+	/**
+	 * Free a player's slot for reuse
+	 *
+	 * @param uuid the player's UUID
+	 * @return the slot which was freed, or -1 if the player had none
+	 */
+	public synchronized int release(UUID uuid) {
+		Integer slot = slots.remove(uuid);
+		if (slot == null) return -1;
+
+		used.clear(slot);
+		return slot;
+	}
+
+	/**
+	 * Retrieve a player's slot
+	 *
+	 * @param uuid the player's UUID
+	 * @return the player's slot, or -1 if the player has none
+	 */
+	public int get(UUID uuid) {
+		Integer slot = slots.get(uuid);
+		return slot != null ? slot : -1;
+	}
+}
@@ -0,0 +1,234 @@
+/*
+ * TabListHide - Hide or show players in the tab player list
+ * Copyright (C) 2017 pgmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.pgmann.tablisthide;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.bukkit.Location;
+import org.bukkit.entity.Player;
+
+/**
+ * A grid of chunk-sized cells holding the players in each, used to find who is near whom.
+ * Two players are near when they are in the same world and their cells are at most the radius apart on each axis.
+ * <p>
+ * The grid is only changed on the main thread. Whether two players are near is kept in a {@link VisibilityMatrix},
+ * so it can be read from any thread.
+ *
+ * @author pgmann
+ * @see PlayerSlots
+ */
+public class ProximityIndex {
+	/**
+	 * Told about each pair of players who become near or far
+	 */
+	public interface Callback {
+		public void changed(Player first, Player second, boolean near);
+	}
+
+	private static final int NO_CELL = Integer.MIN_VALUE;
+
+	// Cells are chunks, or whole worlds if the radius is negative
+	private final int radius;
+	private final boolean wholeWorld;
+
+	private Callback callback;
+	private VisibilityMatrix near = new VisibilityMatrix();
+
+	// Players in each cell, by world then packed cell coordinates
+	private Map<UUID, Map<Long, List<Integer>>> cells = new HashMap<UUID, Map<Long, List<Integer>>>();
+
+	// The cell of each player, by player slot
+	private Player[] players = new Player[0];
+	private UUID[] worlds = new UUID[0];
+	private int[] cellX = new int[0];
+	private int[] cellZ = new int[0];
+
+	/**
+	 * @param radius how many chunks apart players can be and still be near, or -1 for the same world
+	 * @param callback told about pairs who become near or far as players move
+	 */
+	public ProximityIndex(int radius, Callback callback) {
+		this.radius = Math.max(radius, 0);
+		this.wholeWorld = radius < 0;
+		this.callback = callback;
+	}
+
+	/**
+	 * Check if two players are near each other. Safe to call from any thread.
+	 *
+	 * @param first the slot of the first player
+	 * @param second the slot of the second player
+	 * @return whether the players are near, or true if either isn't a tracked player
+	 */
+	public boolean isNear(int first, int second) {
+		return first < 0 || second < 0 || first == second || near.get(first, second);
+	}
+
+	/**
+	 * Place a player who has joined, without telling the callback - the server sends their tab list as normal
+	 *
+	 * @param slot the player's slot
+	 * @param player the player
+	 * @param location where the player is
+	 */
+	public void add(int slot, Player player, Location location) {
+		if (slot >= players.length) grow(slot + 1);
+		remove(slot);
+		players[slot] = player;
+		worlds[slot] = location.getWorld().getUID();
+		cellX[slot] = cell(location.getBlockX());
+		cellZ[slot] = cell(location.getBlockZ());
+		enter(slot);
+
+		for (int other : around(slot)) {
+			near.set(slot, other, true);
+			near.set(other, slot, true);
+		}
+	}
+
+	/**
+	 * Move a player, telling the callback about anyone who became near or far.
+	 * Does nothing unless the player has crossed into another cell.
+	 *
+	 * @param slot the player's slot
+	 * @param location where the player is now
+	 */
+	public void move(int slot, Location location) {
+		if (slot < 0 || slot >= players.length || players[slot] == null) return;
+
+		UUID world = location.getWorld().getUID();
+		int x = cell(location.getBlockX()), z = cell(location.getBlockZ());
+		if (x == cellX[slot] && z == cellZ[slot] && world.equals(worlds[slot])) return;
+
+		// Players near the old cell who aren't near the new one
+		List<Integer> before = around(slot);
+		leave(slot);
+		UUID oldWorld = worlds[slot];
+		int oldX = cellX[slot], oldZ = cellZ[slot];
+		worlds[slot] = world;
+		cellX[slot] = x;
+		cellZ[slot] = z;
+		enter(slot);
+
+		for (int other : before) {
+			if (isNearCell(other, world, x, z)) continue;
+			near.set(slot, other, false);
+			near.set(other, slot, false);
+			callback.changed(players[slot], players[other], false);
+		}
+
+		// Players near the new cell who weren't near the old one
+		for (int other : around(slot)) {
+			if (isNearCell(other, oldWorld, oldX, oldZ)) continue;
+			near.set(slot, other, true);
+			near.set(other, slot, true);
+			callback.changed(players[slot], players[other], true);
+		}
+	}
+
+	/**
+	 * Remove a player who has left
+	 *
+	 * @param slot the player's slot
+	 */
+	public void remove(int slot) {
+		if (slot < 0 || slot >= players.length || players[slot] == null) return;
+		leave(slot);
+		players[slot] = null;
+		worlds[slot] = null;
+		cellX[slot] = cellZ[slot] = NO_CELL;
+		near.clear(slot);
+	}
+
+	/**
+	 * Find the players near a player's cell, by visiting only the cells in range
+	 */
+	private List<Integer> around(int slot) {
+		List<Integer> found = new ArrayList<Integer>();
+		Map<Long, List<Integer>> world = cells.get(worlds[slot]);
+		if (world == null) return found;
+
+		for (int dx = -radius; dx <= radius; dx++) {
+			for (int dz = -radius; dz <= radius; dz++) {
+				List<Integer> cell = world.get(pack(cellX[slot] + dx, cellZ[slot] + dz));
+				if (cell == null) continue;
+				for (int other : cell) {
+					if (other != slot) found.add(other);
+				}
+			}
+		}
+		return found;
+	}
+
+	private boolean isNearCell(int slot, UUID world, int x, int z) {
+		return world.equals(worlds[slot]) && Math.abs(cellX[slot] - x) <= radius && Math.abs(cellZ[slot] - z) <= radius;
+	}
+
+	private void enter(int slot) {
+		Map<Long, List<Integer>> world = cellsOf(worlds[slot]);
+		long key = pack(cellX[slot], cellZ[slot]);
+		List<Integer> cell = world.get(key);
+		if (cell == null) {
+			cell = new ArrayList<Integer>(4);
+			world.put(key, cell);
+		}
+		cell.add(slot);
+	}
+
+	private void leave(int slot) {
+		Map<Long, List<Integer>> world = cells.get(worlds[slot]);
+		long key = pack(cellX[slot], cellZ[slot]);
+		List<Integer> cell = world.get(key);
+		cell.remove(Integer.valueOf(slot));
+		if (cell.isEmpty()) world.remove(key);
+	}
+
+	private Map<Long, List<Integer>> cellsOf(UUID world) {
+		Map<Long, List<Integer>> map = cells.get(world);
+		if (map == null) {
+			map = new HashMap<Long, List<Integer>>();
+			cells.put(world, map);
+		}
+		return map;
+	}
+
+	private int cell(int block) {
+		return wholeWorld ? 0 : block >> 4;
+	}
+
+	private static long pack(int x, int z) {
+		return ((long) x << 32) | (z & 0xffffffffL);
+	}
+
+	private void grow(int length) {
+		length = Math.max(length, players.length * 2);
+		int old = players.length;
+		players = Arrays.copyOf(players, length);
+		worlds = Arrays.copyOf(worlds, length);
+		cellX = Arrays.copyOf(cellX, length);
+		cellZ = Arrays.copyOf(cellZ, length);
+		Arrays.fill(cellX, old, length, NO_CELL);
+		Arrays.fill(cellZ, old, length, NO_CELL);
+	}
+}
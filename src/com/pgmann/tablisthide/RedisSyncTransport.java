@@ -0,0 +1,109 @@
+/*
+ * TabListHide - Hide or show players in the tab player list
+ * Copyright (C) 2017 pgmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.pgmann.tablisthide;
+
+/**
+ * Carries messages over Redis pub/sub, through whichever Redis client the server already uses.
+ * <p>
+ * Implement {@link Client} for that client and pass this transport to
+ * {@link TabListHide#startSync(SyncTransport)}.
+ *
+ * @author pgmann
+ */
+public class RedisSyncTransport implements SyncTransport {
+	/**
+	 * The pub/sub operations needed from a Redis client
+	 */
+	public interface Client {
+		/**
+		 * Publish a binary message on a channel.
+		 * @param channel - the channel name.
+		 * @param message - the message.
+		 */
+		public void publish(String channel, byte[] message);
+
+		/**
+		 * Subscribe to a channel. The client must call {@link Subscriber#connected()}
+		 * once subscribed, and again after every reconnect.
+		 * @param channel - the channel name.
+		 * @param subscriber - receives the channel's messages.
+		 */
+		public void subscribe(String channel, Subscriber subscriber);
+
+		/**
+		 * Unsubscribe from a channel.
+		 * @param channel - the channel name.
+		 */
+		public void unsubscribe(String channel);
+	}
+
+	/**
+	 * Receives messages from a subscribed channel
+	 */
+	public interface Subscriber {
+		/**
+		 * Handle a message, including this server's own.
+		 * @param message - the message.
+		 */
+		public void message(byte[] message);
+
+		/**
+		 * Called after subscribing or resubscribing.
+		 */
+		public void connected();
+	}
+
+	private Client client;
+	private String channel;
+
+	/**
+	 * @param client the Redis client to use
+	 * @param channel the pub/sub channel name
+	 */
+	public RedisSyncTransport(Client client, String channel) {
+		this.client = client;
+		this.channel = channel;
+	}
+
+	@Override
+	public void start(final Receiver receiver) {
+		client.subscribe(channel, new Subscriber() {
+			@Override
+			public void message(byte[] message) {
+				// Own messages are ignored by the receiver, which checks the origin
+				receiver.receive(message);
+			}
+
+			@Override
+			public void connected() {
+				receiver.connected();
+			}
+		});
+	}
+
+	@Override
+	public void publish(byte[] message) {
+		client.publish(channel, message);
+	}
+
+	@Override
+	public void close() {
+		client.unsubscribe(channel);
+	}
+}
@@ -18,10 +18,16 @@
 
 package com.pgmann.tablisthide;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -29,6 +35,12 @@ import org.bukkit.Bukkit;
 
 /**
  * A utility class that simplifies reflection in Bukkit plugins.
+ * <p>
+ * Accessors are backed by method handles resolved once, instead of calling through
+ * {@link Field}, {@link Method} and {@link Constructor} on every use. Classes are cached by lookup name.
+ * <p>
+ * Accessors still box their arguments, so hot paths should hold the handle from
+ * {@link #getFieldGetter(Class, Class, int)} in a static final field and call it with its exact type.
  * @author Kristian
  */
 public final class Reflection {
@@ -92,6 +104,18 @@ public final class Reflection {
 	// Variable replacement
 	private static Pattern MATCH_VARIABLE = Pattern.compile("\\{([^\\}]+)\\}");
 	
+	// Classes by lookup name, so variables are only expanded once per name
+	private static ConcurrentMap<String, Class<?>> CLASS_CACHE = new ConcurrentHashMap<String, Class<?>>();
+	
+	// Accessible members are unreflected through this, after setAccessible
+	private static MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+	
+	// Common accessor shapes
+	private static MethodType GETTER = MethodType.methodType(Object.class, Object.class);
+	private static MethodType SETTER = MethodType.methodType(void.class, Object.class, Object.class);
+	private static MethodType INVOKER = MethodType.methodType(Object.class, Object.class, Object[].class);
+	private static MethodType CONSTRUCTOR = MethodType.methodType(Object.class, Object[].class);
+	
 	private Reflection() {
 		// Seal class
 	}
@@ -140,48 +164,92 @@ public final class Reflection {
 		return getField(getClass(className), fieldType, index);
 	}
 	
+	/**
+	 * Retrieve a getter for a specific field type, typed (DeclaringClass)FieldType.
+	 * When the caller stores it in a static final field, the JIT can inline it like a direct field read.
+	 * @param target - the target type.
+	 * @param fieldType - a compatible field type.
+	 * @param index - the number of compatible fields to skip.
+	 * @return The getter.
+	 */
+	public static MethodHandle getFieldGetter(Class<?> target, Class<?> fieldType, int index) {
+		return unreflectGetter(findField(target, null, fieldType, index));
+	}
+	
 	// Common method
 	private static <T> FieldAccessor<T> getField(Class<?> target, String name, Class<T> fieldType, int index) {
-		for (final Field field : target.getDeclaredFields()) {
+		final Field field = findField(target, name, fieldType, index);
+		final boolean isStatic = Modifier.isStatic(field.getModifiers());
+		
+		// Static fields ignore the target
+		MethodHandle getter = unreflectGetter(field);
+		MethodHandle setter;
+		try {
+			setter = LOOKUP.unreflectSetter(field);
+		} catch (IllegalAccessException e) {
+			// Final fields have no setter handle, they are set through the field instead
+			setter = null;
+		}
+		if (isStatic) {
+			getter = MethodHandles.dropArguments(getter, 0, Object.class);
+			if (setter != null) setter = MethodHandles.dropArguments(setter, 0, Object.class);
+		}
+		final MethodHandle get = getter.asType(GETTER);
+		final MethodHandle set = setter != null ? setter.asType(SETTER) : null;
+		
+		// A function for retrieving a specific field value
+		return new FieldAccessor<T>() {
+			@SuppressWarnings("unchecked")
+			@Override
+			public T get(Object target) {
+				try {
+					return (T) (Object) get.invokeExact(target);
+				} catch (Throwable e) {
+					throw new RuntimeException("Cannot access reflection.", e);
+				}
+			}
+			
+			@Override
+			public void set(Object target, Object value) {
+				try {
+					if (set != null) set.invokeExact(target, value);
+					else field.set(target, value);
+				} catch (Throwable e) {
+					throw new RuntimeException("Cannot access reflection.", e);
+				}
+			}
+			
+			@Override
+			public boolean hasField(Object target) {
+				// target instanceof DeclaringClass
+				return field.getDeclaringClass().isAssignableFrom(target.getClass());
+			}
+		};
+	}
+	
+	// Find a field, searching in parent classes
+	private static Field findField(Class<?> target, String name, Class<?> fieldType, int index) {
+		for (Field field : target.getDeclaredFields()) {
 			if ((name == null || field.getName().equals(name)) && 
 					fieldType.isAssignableFrom(field.getType()) && index-- <= 0) {
 				field.setAccessible(true);
-				
-				// A function for retrieving a specific field value
-				return new FieldAccessor<T>() {
-					@SuppressWarnings("unchecked")
-					@Override
-					public T get(Object target) {
-						try {
-							return (T) field.get(target);
-						} catch (IllegalAccessException e) {
-							throw new RuntimeException("Cannot access reflection.", e);
-						}
-					}
-					
-					@Override
-					public void set(Object target, Object value) {
-						try {
-							field.set(target, value);
-						} catch (IllegalAccessException e) {
-							throw new RuntimeException("Cannot access reflection.", e);
-						}
-					}
-					
-					@Override
-					public boolean hasField(Object target) {
-						// target instanceof DeclaringClass
-						return field.getDeclaringClass().isAssignableFrom(target.getClass());
-					}
-				};
+				return field;
 			}
 		}
 		
 		// Search in parent classes
 		if (target.getSuperclass() != null)
-			return getField(target.getSuperclass(), name, fieldType, index);
+			return findField(target.getSuperclass(), name, fieldType, index);
 		throw new IllegalArgumentException("Cannot find field with type " + fieldType);
 	}
+	
+	private static MethodHandle unreflectGetter(Field field) {
+		try {
+			return LOOKUP.unreflectGetter(field);
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException("Cannot access reflection.", e);
+		}
+	}
     
     /**
      * Search for the first publically and privately defined method of the given name and parameter count.
@@ -219,16 +287,27 @@ public final class Reflection {
     public static MethodInvoker getTypedMethod(Class<?> clazz, String methodName, Class<?> returnType, Class<?>... params) {
         for (final Method method : clazz.getDeclaredMethods()) {
             if ((methodName == null || method.getName().equals(methodName)) &&
-            	(returnType == null) || method.getReturnType().equals(returnType) &&
+                (returnType == null || method.getReturnType().equals(returnType)) &&
                  Arrays.equals(method.getParameterTypes(), params)) {
 
                 method.setAccessible(true);
+                MethodHandle handle;
+                try {
+                    handle = LOOKUP.unreflect(method);
+                } catch (IllegalAccessException e) {
+                    throw new RuntimeException("Cannot access reflection.", e);
+                }
+
+                // Static methods ignore the target, and arguments are spread from the array
+                if (Modifier.isStatic(method.getModifiers()))
+                    handle = MethodHandles.dropArguments(handle, 0, Object.class);
+                final MethodHandle invoker = handle.asSpreader(Object[].class, params.length).asType(INVOKER);
                 return new MethodInvoker() {
                 	@Override
                 	public Object invoke(Object target, Object... arguments) {
                 		try {
-							return method.invoke(target, arguments);
-						} catch (Exception e) {
+							return (Object) invoker.invokeExact(target, arguments);
+						} catch (Throwable e) {
 							throw new RuntimeException("Cannot invoke method " + method, e);
 						}
                 	}
@@ -237,7 +316,7 @@ public final class Reflection {
         }
         // Search in every superclass
         if (clazz.getSuperclass() != null)
-            return getMethod(clazz.getSuperclass(), methodName, params);
+            return getTypedMethod(clazz.getSuperclass(), methodName, returnType, params);
         throw new IllegalStateException(String.format(
             "Unable to find method %s (%s).", methodName, Arrays.asList(params)));
     }
@@ -265,12 +344,18 @@ public final class Reflection {
             if (Arrays.equals(constructor.getParameterTypes(), params)) {
 
             	constructor.setAccessible(true);
+            	final MethodHandle invoker;
+            	try {
+            		invoker = LOOKUP.unreflectConstructor(constructor).asSpreader(Object[].class, params.length).asType(CONSTRUCTOR);
+            	} catch (IllegalAccessException e) {
+            		throw new RuntimeException("Cannot access reflection.", e);
+            	}
                 return new ConstructorInvoker() {
                 	@Override
                 	public Object invoke(Object... arguments) {
                 		try {
-							return constructor.newInstance(arguments);
-						} catch (Exception e) {
+							return (Object) invoker.invokeExact(arguments);
+						} catch (Throwable e) {
 							throw new RuntimeException("Cannot invoke constructor " + constructor, e);
 						}
                 	}
@@ -325,7 +410,12 @@ public final class Reflection {
      * @throws IllegalArgumentException If a variable or class could not be found.
      */
     public static Class<?> getClass(String lookupName) {
-    	return getCanonicalClass(expandVariables(lookupName));
+    	Class<?> clazz = CLASS_CACHE.get(lookupName);
+    	if (clazz == null) {
+    		clazz = getCanonicalClass(expandVariables(lookupName));
+    		CLASS_CACHE.put(lookupName, clazz);
+    	}
+    	return clazz;
     }
     
 	/**
@@ -352,11 +442,15 @@ public final class Reflection {
 	 * @return The class.
 	 */
 	private static Class<?> getCanonicalClass(String canonicalName) {
+		Class<?> clazz = CLASS_CACHE.get(canonicalName);
+		if (clazz != null) return clazz;
     	try {
-			return Class.forName(canonicalName);
+			clazz = Class.forName(canonicalName);
 		} catch (ClassNotFoundException e) {
 			throw new IllegalArgumentException("Cannot find " + canonicalName, e);
 		}
+		CLASS_CACHE.put(canonicalName, clazz);
+		return clazz;
 	}
 	
 	/**
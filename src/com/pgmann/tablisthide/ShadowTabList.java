@@ -0,0 +1,178 @@
+/*
+ * TabListHide - Hide or show players in the tab player list
+ * Copyright (C) 2017 pgmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.pgmann.tablisthide;
+
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * What each client's tab list is believed to contain, so packets which wouldn't change it can be dropped.
+ * <p>
+ * Entries are indexed by player slot. Targets without a slot (eg. NPCs) aren't tracked, and every change to them is sent.
+ * <p>
+ * Each viewer's row is split into fixed size chunks of 2-bit states, which are updated atomically
+ * and never copied, so packets for different receivers don't wait for each other. Only adding a
+ * chunk, or making room for more viewers, takes the lock.
+ *
+ * @author pgmann
+ * @see PlayerSlots
+ */
+public class ShadowTabList {
+	/** Not in the tab list */
+	public static final byte ABSENT = 0;
+	/** In the tab list under the player's name */
+	public static final byte LISTED = 1;
+	/** In the tab list with a blank name, waiting to be removed */
+	public static final byte BLANK = 2;
+	/** Not known, eg. while reconciling - no change is redundant */
+	public static final byte UNKNOWN = 3;
+
+	// 512 targets per chunk, 32 to each word
+	private static final int CHUNK_SHIFT = 9;
+	private static final int CHUNK_WORDS = 1 << CHUNK_SHIFT >>> 5;
+	private static final AtomicLongArray[] EMPTY_ROW = new AtomicLongArray[0];
+
+	private PlayerSlots slots;
+	private volatile AtomicReferenceArray<AtomicLongArray[]> rows = new AtomicReferenceArray<AtomicLongArray[]>(0);
+
+	/**
+	 * @param slots the slots of online players
+	 */
+	public ShadowTabList(PlayerSlots slots) {
+		this.slots = slots;
+	}
+
+	/**
+	 * Record a change to a viewer's tab list
+	 *
+	 * @param viewer the UUID of the player whose tab list changed
+	 * @param target the UUID of the entry which changed
+	 * @param state the entry's new state
+	 * @return whether the state changed, or the pair isn't tracked
+	 */
+	public boolean update(UUID viewer, UUID target, byte state) {
+		return update(slots.get(viewer), slots.get(target), state);
+	}
+
+	/**
+	 * Record a change to a viewer's tab list
+	 *
+	 * @param viewer the slot of the player whose tab list changed
+	 * @param target the slot of the entry which changed
+	 * @param state the entry's new state
+	 * @return whether the state changed, or the pair isn't tracked
+	 */
+	public boolean update(int viewer, int target, byte state) {
+		if (viewer < 0 || target < 0) return true;
+
+		AtomicLongArray chunk = chunk(viewer, target);
+		if (chunk == null) {
+			if (state == ABSENT) return false;
+			chunk = addChunk(viewer, target);
+		}
+
+		int word = target >>> 5 & CHUNK_WORDS - 1;
+		int shift = (target & 31) << 1;
+		while (true) {
+			long old = chunk.get(word);
+			if ((old >>> shift & 3) == state) return false;
+			if (chunk.compareAndSet(word, old, old & ~(3L << shift) | (long) state << shift)) return true;
+		}
+	}
+
+	/**
+	 * Retrieve the state of an entry in a viewer's tab list
+	 *
+	 * @param viewer the slot of the player whose tab list is checked
+	 * @param target the slot of the entry
+	 * @return the entry's state
+	 */
+	public byte get(int viewer, int target) {
+		if (viewer < 0 || target < 0) return UNKNOWN;
+		AtomicLongArray chunk = chunk(viewer, target);
+		if (chunk == null) return ABSENT;
+		return (byte) (chunk.get(target >>> 5 & CHUNK_WORDS - 1) >>> ((target & 31) << 1) & 3);
+	}
+
+	/**
+	 * Forget every entry involving a slot, as a viewer or a target.
+	 * A new player in the slot starts with an empty tab list, and isn't in anybody else's.
+	 *
+	 * @param slot the slot to clear
+	 */
+	public synchronized void clear(int slot) {
+		if (slot < 0) return;
+		AtomicReferenceArray<AtomicLongArray[]> rows = this.rows;
+
+		if (slot < rows.length()) rows.set(slot, EMPTY_ROW);
+		int index = slot >>> CHUNK_SHIFT;
+		int word = slot >>> 5 & CHUNK_WORDS - 1;
+		long mask = ~(3L << ((slot & 31) << 1));
+		for (int i = 0; i < rows.length(); i++) {
+			AtomicLongArray[] row = rows.get(i);
+			if (index >= row.length || row[index] == null) continue;
+
+			// Other threads may be updating the same word without the lock
+			AtomicLongArray chunk = row[index];
+			long old;
+			do {
+				old = chunk.get(word);
+			} while (!chunk.compareAndSet(word, old, old & mask));
+		}
+	}
+
+	/**
+	 * Find the chunk holding an entry, without locking
+	 *
+	 * @return the chunk, or null if it hasn't been added
+	 */
+	private AtomicLongArray chunk(int viewer, int target) {
+		AtomicReferenceArray<AtomicLongArray[]> rows = this.rows;
+		if (viewer >= rows.length()) return null;
+		AtomicLongArray[] row = rows.get(viewer);
+		int index = target >>> CHUNK_SHIFT;
+		return index < row.length ? row[index] : null;
+	}
+
+	/**
+	 * Add the chunk holding an entry, doubling the rows or the viewer's row if there's no room.
+	 * A row is never changed once published, a copy with the new chunk replaces it.
+	 *
+	 * @return the chunk, which may have been added by another thread first
+	 */
+	private synchronized AtomicLongArray addChunk(int viewer, int target) {
+		AtomicReferenceArray<AtomicLongArray[]> rows = this.rows;
+		if (viewer >= rows.length()) {
+			AtomicReferenceArray<AtomicLongArray[]> grown = new AtomicReferenceArray<AtomicLongArray[]>(Math.max(viewer + 1, rows.length() * 2));
+			for (int i = 0; i < grown.length(); i++) grown.set(i, i < rows.length() ? rows.get(i) : EMPTY_ROW);
+			this.rows = rows = grown;
+		}
+
+		AtomicLongArray[] row = rows.get(viewer);
+		int index = target >>> CHUNK_SHIFT;
+		if (index < row.length && row[index] != null) return row[index];
+
+		row = Arrays.copyOf(row, index < row.length ? row.length : Math.max(index + 1, row.length * 2));
+		row[index] = new AtomicLongArray(CHUNK_WORDS);
+		rows.set(viewer, row);
+		return row[index];
+	}
+}
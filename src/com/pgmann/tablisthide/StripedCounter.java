@@ -0,0 +1,63 @@
+/*
+ * TabListHide - Hide or show players in the tab player list
+ * Copyright (C) 2017 pgmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.pgmann.tablisthide;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter which many threads can increment without contending on a single value.
+ *
+ * @author pgmann
+ */
+public class StripedCounter {
+	private static final int STRIPES = 16; // Must be a power of 2
+	private static final int PADDING = 8; // One cache line between stripes
+
+	private AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+	/**
+	 * Add to the counter
+	 *
+	 * @param amount the amount to add
+	 */
+	public void add(long amount) {
+		cells.addAndGet(stripe(), amount);
+	}
+
+	/**
+	 * Add one to the counter
+	 */
+	public void increment() {
+		add(1);
+	}
+
+	/**
+	 * @return the current total
+	 */
+	public long sum() {
+		long sum = 0;
+		for (int i = 0; i < STRIPES; i++) sum += cells.get(i * PADDING);
+		return sum;
+	}
+
+	private static int stripe() {
+		long id = Thread.currentThread().getId();
+		return (int) ((id ^ (id >>> 16)) & (STRIPES - 1)) * PADDING;
+	}
+}
@@ -0,0 +1,60 @@
+/*
+ * TabListHide - Hide or show players in the tab player list
+ * Copyright (C) 2017 pgmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.pgmann.tablisthide;
+
+/**
+ * Carries hidden state messages between servers.
+ *
+ * @author pgmann
+ * @see HiddenStateSync
+ */
+public interface SyncTransport {
+	/**
+	 * Receives messages from other servers. May be called from any thread.
+	 */
+	public interface Receiver {
+		/**
+		 * Handle a message published by another server
+		 * @param message - the message.
+		 */
+		public void receive(byte[] message);
+
+		/**
+		 * Called whenever the transport (re)connects, as messages may have been missed.
+		 */
+		public void connected();
+	}
+
+	/**
+	 * Start delivering messages to a receiver.
+	 * @param receiver - the receiver.
+	 */
+	public void start(Receiver receiver);
+
+	/**
+	 * Send a message to all other servers.
+	 * @param message - the message.
+	 */
+	public void publish(byte[] message);
+
+	/**
+	 * Stop delivering messages and release any resources.
+	 */
+	public void close();
+}
@@ -18,12 +18,21 @@
 
 package com.pgmann.tablisthide;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Set;
+import java.util.UUID;
+import java.util.logging.Level;
 
 import org.bukkit.ChatColor;
 import org.bukkit.entity.Player;
 import org.bukkit.plugin.java.JavaPlugin;
 
+import com.google.common.util.concurrent.ListenableFuture;
+
 /**
  * The main plugin class
  * 
@@ -34,6 +43,8 @@ public class TabListHide extends JavaPlugin {
 	static String rawPrefix = ChatColor.YELLOW + "TabListHide" + ChatColor.WHITE;
 	static String prefix = ChatColor.WHITE + "[" + rawPrefix + ChatColor.WHITE + "] ";
 	private HidePlayerList hpl;
+	private VisibilityRules rules;
+	private MetricsServer metricsServer;
 	private static TabListHide instance;
 
 	@Override
@@ -42,22 +53,92 @@ public class TabListHide extends JavaPlugin {
 
 		// Allow static API
 		instance = this;
+
+		// Load the configuration
+		saveDefaultConfig();
 		
 		// Register the command listener
 		commands = new TlhCommand(this);
 		getCommand("tablisthide").setExecutor(commands);
 		getCommand("tlh").setExecutor(commands);
 
+		// Compile the rules which hide players automatically
+		rules = new VisibilityRules(getConfig().getConfigurationSection("rules"), getLogger());
+
 		// Register the event listener
-		getServer().getPluginManager().registerEvents(new TlhListener(this), this);
+		getServer().getPluginManager().registerEvents(new TlhListener(), this);
 		
 		// Register ProtocolLib packet listener
 		hpl = new HidePlayerList(this);
-		hpl.register();
+
+		// Load players who were hidden before the restart
+		if (getConfig().getBoolean("persist-hidden", true)) {
+			long start = System.nanoTime();
+			int loaded = hpl.persist(new HiddenStore(new File(getDataFolder(), "hidden.dat"), getLogger()));
+			rules.persist(new HiddenStore(new File(getDataFolder(), "rule-hidden.dat"), getLogger()));
+			getLogger().info("Loaded " + loaded + " hidden players in " + (System.nanoTime() - start) / 1000000 + "ms");
+		}
+
+		// Only list nearby players, if enabled
+		if (getConfig().getBoolean("proximity.enabled", false)) {
+			int radius = getConfig().getInt("proximity.radius", 8);
+			if (radius >= 0 && radius < 4) {
+				getLogger().warning("proximity.radius is less than the player tracking range, nearby players may not appear in the world");
+			}
+			hpl.setProximity(radius);
+		}
+
+		// Cap each tab list, if enabled
+		if (getConfig().getBoolean("capacity.enabled", false)) {
+			List<TabRanking.Tier> priority = new ArrayList<TabRanking.Tier>();
+			for (String tier : getConfig().getStringList("capacity.priority")) {
+				try {
+					priority.add(TabRanking.Tier.valueOf(tier.toUpperCase()));
+				} catch (IllegalArgumentException e) {
+					getLogger().warning("Unknown capacity priority " + tier + ", expected staff, friend, party or recent");
+				}
+			}
+			hpl.setCapacity(getConfig().getInt("capacity.max-entries", 80), priority,
+					getConfig().getString("capacity.staff-permission", "tablisthide.staff"),
+					getConfig().getLong("capacity.recent-seconds", 300) * 20);
+		}
+
+		// Filter packets in the Netty pipeline instead of through ProtocolLib, if enabled
+		if (getConfig().getString("engine", "protocollib").equalsIgnoreCase("netty")) {
+			try {
+				hpl.useNettyEngine();
+			} catch (IllegalStateException e) {
+				getLogger().log(Level.WARNING, "Cannot use the Netty engine on this server, using ProtocolLib instead", e);
+			}
+		}
+
+		if (!getConfig().getBoolean("hide-in-server-list", true)) hpl.showInServerList();
+
+		hpl.setTickBudget((long) (getConfig().getDouble("tick-budget-ms", 1.0) * 1000000));
+		hpl.register(getConfig().getBoolean("async-listener", false));
+
+		// Keep hidden players in step with other servers in this JVM, for testing
+		// Other transports, such as Redis, are started through startSync
+		if (getConfig().getBoolean("sync.enabled", false) && getConfig().getString("sync.transport", "local").equalsIgnoreCase("local")) {
+			startSync(new LocalSyncTransport(getConfig().getString("sync.channel", "tablisthide")));
+		}
+
+		// Serve metrics locally, if enabled
+		int metricsPort = getConfig().getInt("metrics-port", 0);
+		if (metricsPort > 0) {
+			try {
+				metricsServer = new MetricsServer(hpl.getMetrics(), metricsPort);
+			} catch (IOException e) {
+				getLogger().log(Level.WARNING, "Could not serve metrics on port " + metricsPort, e);
+			}
+		}
 	}
 
 	@Override
 	public void onDisable() {
+		if (metricsServer != null) metricsServer.stop();
+		if (hpl != null) hpl.cleanupAll();
+		if (rules != null) rules.close();
 		getServer().getConsoleSender().sendMessage(rawPrefix + " is now disabled.");
 	}
 
@@ -68,6 +149,10 @@ public class TabListHide extends JavaPlugin {
 	protected static HidePlayerList getInternals() {
 		return instance.hpl;
 	}
+
+	protected static VisibilityRules getRules() {
+		return instance.rules;
+	}
 	
 	/**
 	 * Change whether a player is visible in the tab list
@@ -89,6 +174,63 @@ public class TabListHide extends JavaPlugin {
 		return success;
 	}
 	
+	/**
+	 * Change whether many players are visible in the tab list at once.
+	 * The changes are sent to each client together, in one packet.
+	 * 
+	 * @param players the players to affect
+	 * @param visible set the new state
+	 * @param silent whether to notify the target players
+	 * @return the players whose state changed
+	 */
+	public static List<Player> setPlayersVisible(Collection<? extends Player> players, boolean visible, boolean silent) {
+		List<Player> changed = instance.hpl.setVisible(players, visible);
+		
+		if (!silent) {
+			for (Player player : changed) {
+				player.sendMessage(prefix + "You are now " + ChatColor.YELLOW + (visible ? "" : "in") + "visible"+ChatColor.WHITE+" on the tab list");
+			}
+		}
+		
+		return changed;
+	}
+	
+	/**
+	 * Change whether a target is a viewer's friend or in their party, keeping them in the viewer's tab list
+	 * when it is full. Both players must be online, and the relation is forgotten when either leaves.
+	 * 
+	 * @param viewer the player whose tab list is affected
+	 * @param target the friend or party member
+	 * @param tier {@link TabRanking.Tier#FRIEND} or {@link TabRanking.Tier#PARTY}
+	 * @param value whether the relation applies
+	 */
+	public static void setRelation(Player viewer, Player target, TabRanking.Tier tier, boolean value) {
+		instance.hpl.setRelation(viewer, target, tier, value);
+	}
+
+	/**
+	 * Evaluate the rules depending on something which has changed for a player, eg. after a permissions plugin
+	 * recalculates their permissions. Bukkit has no events for permission, team or metadata changes.
+	 * A permission change also ranks the player again in capped tab lists, for the staff tier.
+	 * 
+	 * @param player the player whose permissions, team or metadata changed
+	 * @param trigger what changed
+	 */
+	public static void refreshRules(Player player, VisibilityRules.Trigger trigger) {
+		instance.rules.evaluate(player, player.getGameMode(), trigger);
+		if (trigger == VisibilityRules.Trigger.PERMISSION) instance.hpl.refreshStaff(player);
+	}
+
+	/**
+	 * Keep hidden players in step with other servers, replacing any transport already in use.
+	 * Use {@link RedisSyncTransport} to sync through Redis.
+	 * 
+	 * @param transport carries messages to and from other servers
+	 */
+	public static void startSync(SyncTransport transport) {
+		instance.hpl.startSync(transport, instance.getConfig().getInt("sync.flush-ticks", 5));
+	}
+	
 	/**
 	 * Check if a player is visible in the tab list
 	 * @param player the player to check
@@ -99,7 +241,52 @@ public class TabListHide extends JavaPlugin {
 	}
 	
 	/**
-	 * Get all the names of hidden players
+	 * Change whether a viewer can see a player while that player is hidden in the tab list,
+	 * eg. so staff can see other hidden staff. Forgotten when either player leaves.
+	 * 
+	 * @param viewer the player whose tab list is affected
+	 * @param target the player to affect
+	 * @param visible whether the viewer can see the target while hidden
+	 * @return whether anything changed
+	 */
+	public static boolean setPlayerVisibleTo(Player viewer, Player target, boolean visible) {
+		return instance.hpl.setRevealed(viewer, target, visible);
+	}
+	
+	/**
+	 * Check if a player is visible in a viewer's tab list
+	 * @param viewer the player whose tab list is checked
+	 * @param target the player to check
+	 * @return whether the viewer can see the target
+	 */
+	public static boolean isPlayerVisibleTo(Player viewer, Player target) {
+		return instance.hpl.isVisible(viewer, target);
+	}
+	
+	/**
+	 * Change whether many players are visible in the tab list at once, without notifying them.
+	 * Safe to call from any thread; the changes are made at the start of the next tick.
+	 * Players who aren't online are changed too, and stay hidden or shown when they join.
+	 * 
+	 * @param uuids the UUIDs of the players to affect
+	 * @param visible set the new state
+	 * @return a future completed with the UUIDs which changed, once the packets for them have been sent
+	 */
+	public static ListenableFuture<Set<UUID>> setPlayersVisibleAsync(Collection<UUID> uuids, boolean visible) {
+		return instance.hpl.setVisibleAsync(uuids, visible);
+	}
+	
+	/**
+	 * Get the UUIDs of all hidden players, online or not. Safe to call from any thread.
+	 * The snapshot is only rebuilt after a change, so this is cheap to call often.
+	 * @return an immutable snapshot of the hidden players' UUIDs
+	 */
+	public static Set<UUID> getHiddenSnapshot() {
+		return instance.hpl.getHiddenSnapshot();
+	}
+	
+	/**
+	 * Get all the names of hidden players who are online
 	 * @return the hidden players' names
 	 */
 	public static Set<String> getHiddenPlayers() {
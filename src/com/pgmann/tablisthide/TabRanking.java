@@ -0,0 +1,455 @@
+/*
+ * TabListHide - Hide or show players in the tab player list
+ * Copyright (C) 2017 pgmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.pgmann.tablisthide;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.bukkit.entity.Player;
+
+/**
+ * Caps each viewer's tab list at a number of entries, keeping the players with the highest priority.
+ * <p>
+ * Each viewer has two indexed heaps of targets: the listed ones, worst on top, and the rest, best on top.
+ * A change to one target's priority moves it within its heap, then swaps at most a few targets across -
+ * so churn only sends a few changes to each client. Only changed on the main thread; whether a target
+ * is listed is kept in a {@link VisibilityMatrix}, so it can be read from any thread.
+ *
+ * @author pgmann
+ * @see PlayerSlots
+ */
+public class TabRanking {
+	/**
+	 * The reasons a player may be kept in a full tab list, in the order configured
+	 */
+	public enum Tier {
+		STAFF, FRIEND, PARTY, RECENT
+	}
+
+	/**
+	 * Told which targets each viewer's tab list gains or loses, and whether a target is left out anyway
+	 */
+	public interface Callback {
+		public boolean isExcluded(Player viewer, Player target);
+
+		public void changed(Player viewer, Player target, boolean listed);
+	}
+
+	// Relations are stored as one bit per tier
+	private static final int FRIEND_BIT = 1 << Tier.FRIEND.ordinal();
+	private static final int PARTY_BIT = 1 << Tier.PARTY.ordinal();
+
+	// Targets left out anyway rank below everyone else, so they only take up spare room
+	private static final int EXCLUDED = Tier.values().length + 1;
+
+	private final int capacity;
+	private final int[] rankOf = new int[Tier.values().length];
+	private final int unranked;
+	private final long recentTicks;
+	private final String staffPermission;
+	private Callback callback;
+
+	private VisibilityMatrix listed = new VisibilityMatrix();
+
+	// By player slot
+	private Player[] players = new Player[0];
+	private boolean[] staff = new boolean[0];
+	private View[] views = new View[0];
+
+	// Relations and interactions, by packed viewer and target slots
+	private Map<Long, Integer> relations = new HashMap<Long, Integer>();
+	private Map<Long, Long> interactions = new HashMap<Long, Long>();
+
+	// One expiry per interacting pair, put off again when it's due if they have interacted since
+	private TimingWheel expiries = new TimingWheel();
+	private long now;
+
+	/**
+	 * @param capacity the most entries a viewer's tab list may have, not counting themself
+	 * @param priority the tiers which keep a player in a full tab list, highest first - others rank below them
+	 * @param staffPermission the permission which puts a player in the staff tier
+	 * @param recentTicks how long an interaction keeps players in each other's recent tier
+	 * @param callback told about changes to each tab list
+	 */
+	public TabRanking(int capacity, List<Tier> priority, String staffPermission, long recentTicks, Callback callback) {
+		this.capacity = capacity;
+		this.staffPermission = staffPermission;
+		this.recentTicks = recentTicks;
+		this.callback = callback;
+
+		this.unranked = priority.size();
+		Arrays.fill(rankOf, unranked);
+		for (int i = priority.size() - 1; i >= 0; i--) rankOf[priority.get(i).ordinal()] = i;
+	}
+
+	/**
+	 * Check if a target is in a viewer's capped tab list. Safe to call from any thread.
+	 *
+	 * @param viewer the viewer's slot
+	 * @param target the target's slot
+	 * @return whether the target is listed, or true if either isn't a tracked player
+	 */
+	public boolean isListed(int viewer, int target) {
+		return viewer < 0 || target < 0 || viewer == target || listed.get(viewer, target);
+	}
+
+	/**
+	 * Rank a player who has joined. Their own tab list is chosen without telling the callback -
+	 * the server sends it as normal - but other viewers may gain them and lose someone else.
+	 *
+	 * @param slot the player's slot
+	 * @param player the player
+	 */
+	public void add(int slot, Player player) {
+		if (slot >= players.length) grow(slot + 1);
+		players[slot] = player;
+		staff[slot] = player.hasPermission(staffPermission);
+
+		View view = new View(slot);
+		views[slot] = view;
+		for (int other = 0; other < players.length; other++) {
+			if (other == slot || players[other] == null) continue;
+			view.insert(other, score(slot, other));
+		}
+		view.rebalance(false);
+
+		for (int other = 0; other < players.length; other++) {
+			if (other == slot || views[other] == null) continue;
+			views[other].insert(slot, score(other, slot));
+			views[other].rebalance(true);
+		}
+	}
+
+	/**
+	 * Stop ranking a player who has left, filling any room they leave in other tab lists
+	 *
+	 * @param slot the player's slot
+	 */
+	public void remove(int slot) {
+		if (slot < 0 || slot >= players.length || players[slot] == null) return;
+		views[slot] = null;
+		players[slot] = null;
+		listed.clear(slot);
+
+		for (View view : views) {
+			if (view == null) continue;
+			view.remove(slot);
+			view.rebalance(true);
+		}
+		for (Iterator<Long> it = relations.keySet().iterator(); it.hasNext();) {
+			if (involves(it.next(), slot)) it.remove();
+		}
+		for (Iterator<Long> it = interactions.keySet().iterator(); it.hasNext();) {
+			if (involves(it.next(), slot)) it.remove();
+		}
+	}
+
+	/**
+	 * Check a player's permission for the staff tier again, eg. after a permissions plugin recalculates it.
+	 * Otherwise it is only checked when they join.
+	 *
+	 * @param slot the player's slot
+	 */
+	public void refreshStaff(int slot) {
+		if (slot < 0 || slot >= players.length || players[slot] == null) return;
+		boolean isStaff = players[slot].hasPermission(staffPermission);
+		if (staff[slot] == isStaff) return;
+		staff[slot] = isStaff;
+		updateTarget(slot);
+	}
+
+	/**
+	 * Rank a target again in one viewer's tab list, after something it depends on changed
+	 *
+	 * @param viewer the viewer's slot
+	 * @param target the target's slot
+	 */
+	public void update(int viewer, int target) {
+		if (viewer < 0 || target < 0 || viewer == target) return;
+		if (viewer >= views.length || target >= players.length) return;
+		View view = views[viewer];
+		if (view == null || players[target] == null) return;
+		view.update(target, score(viewer, target));
+	}
+
+	/**
+	 * Rank a target again in every viewer's tab list, eg. after they were hidden or shown
+	 *
+	 * @param target the target's slot
+	 */
+	public void updateTarget(int target) {
+		for (int viewer = 0; viewer < views.length; viewer++) update(viewer, target);
+	}
+
+	/**
+	 * Change whether a viewer and target are friends or in a party, for the viewer's tab list only
+	 *
+	 * @param viewer the viewer's slot
+	 * @param target the target's slot
+	 * @param tier {@link Tier#FRIEND} or {@link Tier#PARTY}
+	 * @param value whether the relation applies
+	 */
+	public void setRelation(int viewer, int target, Tier tier, boolean value) {
+		if (tier != Tier.FRIEND && tier != Tier.PARTY) throw new IllegalArgumentException("Only friends and parties are relations");
+		if (viewer < 0 || target < 0) return;
+
+		long key = pack(viewer, target);
+		Integer old = relations.get(key);
+		int bits = old != null ? old : 0;
+		int updated = value ? bits | (1 << tier.ordinal()) : bits & ~(1 << tier.ordinal());
+		if (updated == bits) return;
+
+		if (updated == 0) relations.remove(key);
+		else relations.put(key, updated);
+		update(viewer, target);
+	}
+
+	/**
+	 * Record that two players interacted, putting each in the other's recent tier for a while
+	 *
+	 * @param first the first player's slot
+	 * @param second the second player's slot
+	 */
+	public void interacted(int first, int second) {
+		if (first < 0 || second < 0 || first == second) return;
+		touch(first, second);
+		touch(second, first);
+	}
+
+	/**
+	 * Move players out of the recent tier once their interactions have expired
+	 */
+	public void tick() {
+		now++;
+		expiries.tick();
+	}
+
+	private void touch(int viewer, int target) {
+		long key = pack(viewer, target);
+		if (interactions.put(key, now) == null) expireAfter(key, recentTicks);
+		update(viewer, target);
+	}
+
+	private void expireAfter(final long key, long delay) {
+		expiries.schedule(key, (int) Math.min(delay, Integer.MAX_VALUE), new Runnable() {
+			@Override
+			public void run() {
+				// Gone if either player left
+				Long last = interactions.get(key);
+				if (last == null) return;
+
+				// Interacted again since, so wait for the latest interaction to expire
+				if (last + recentTicks > now) {
+					expireAfter(key, last + recentTicks - now);
+					return;
+				}
+				interactions.remove(key);
+				update((int) (key >>> 32), (int) key);
+			}
+		});
+	}
+
+	/**
+	 * Score a target for a viewer - lower is better. The tier is in the top bits, and recent
+	 * interactions are ordered most recent first within their tier.
+	 */
+	private long score(int viewer, int target) {
+		if (callback.isExcluded(players[viewer], players[target])) return (long) EXCLUDED << 56;
+
+		long key = pack(viewer, target);
+		Integer relation = relations.get(key);
+		int bits = relation != null ? relation : 0;
+		Long interaction = interactions.get(key);
+
+		int rank = unranked;
+		if (staff[target]) rank = Math.min(rank, rankOf[Tier.STAFF.ordinal()]);
+		if ((bits & FRIEND_BIT) != 0) rank = Math.min(rank, rankOf[Tier.FRIEND.ordinal()]);
+		if ((bits & PARTY_BIT) != 0) rank = Math.min(rank, rankOf[Tier.PARTY.ordinal()]);
+		if (interaction != null && rank >= rankOf[Tier.RECENT.ordinal()]) {
+			rank = rankOf[Tier.RECENT.ordinal()];
+			if (rank < unranked) return ((long) rank << 56) | ((1L << 55) - interaction);
+		}
+		return (long) rank << 56;
+	}
+
+	private static long pack(int viewer, int target) {
+		return ((long) viewer << 32) | (target & 0xffffffffL);
+	}
+
+	private static boolean involves(long key, int slot) {
+		return (int) (key >>> 32) == slot || (int) key == slot;
+	}
+
+	private void grow(int length) {
+		length = Math.max(length, players.length * 2);
+		players = Arrays.copyOf(players, length);
+		staff = Arrays.copyOf(staff, length);
+		views = Arrays.copyOf(views, length);
+	}
+
+	/**
+	 * One viewer's targets, split between the listed heap and the waiting heap
+	 */
+	private class View {
+		private final int viewer;
+		private long[] scores = new long[0];
+		private Heap listedHeap = new Heap(true);
+		private Heap waitingHeap = new Heap(false);
+
+		private View(int viewer) {
+			this.viewer = viewer;
+		}
+
+		private void insert(int target, long score) {
+			if (target >= scores.length) scores = Arrays.copyOf(scores, Math.max(target + 1, scores.length * 2));
+			scores[target] = score;
+			waitingHeap.add(target);
+		}
+
+		private void remove(int target) {
+			listedHeap.remove(target);
+			waitingHeap.remove(target);
+		}
+
+		private void update(int target, long score) {
+			if (scores[target] == score) return;
+			boolean wasListed = listedHeap.remove(target);
+			waitingHeap.remove(target);
+			scores[target] = score;
+			waitingHeap.add(target);
+			rebalance(true);
+
+			// It may have been put straight back
+			if (wasListed && waitingHeap.contains(target) && listed.set(viewer, target, false)) {
+				callback.changed(players[viewer], players[target], false);
+			}
+		}
+
+		/**
+		 * Fill any room in the tab list, then swap targets across until every listed target beats every waiting one
+		 */
+		private void rebalance(boolean notify) {
+			while (listedHeap.size < capacity && waitingHeap.size > 0) {
+				promote(waitingHeap.poll(), notify);
+			}
+			while (waitingHeap.size > 0 && listedHeap.size > 0 && better(waitingHeap.peek(), listedHeap.peek())) {
+				int demoted = listedHeap.poll();
+				promote(waitingHeap.poll(), notify);
+				waitingHeap.add(demoted);
+				if (listed.set(viewer, demoted, false) && notify) callback.changed(players[viewer], players[demoted], false);
+			}
+		}
+
+		private void promote(int target, boolean notify) {
+			listedHeap.add(target);
+			if (listed.set(viewer, target, true) && notify) callback.changed(players[viewer], players[target], true);
+		}
+
+		private boolean better(int a, int b) {
+			return scores[a] < scores[b] || (scores[a] == scores[b] && a < b);
+		}
+
+		/**
+		 * A binary heap of target slots, which knows where each target is so it can be removed
+		 */
+		private class Heap {
+			private final boolean worstFirst;
+			private int[] heap = new int[8];
+			private int[] position = new int[0];
+			private int size;
+
+			private Heap(boolean worstFirst) {
+				this.worstFirst = worstFirst;
+			}
+
+			private boolean contains(int target) {
+				return target < position.length && position[target] > 0;
+			}
+
+			private int peek() {
+				return heap[0];
+			}
+
+			private void add(int target) {
+				if (size == heap.length) heap = Arrays.copyOf(heap, size * 2);
+				if (target >= position.length) position = Arrays.copyOf(position, Math.max(target + 1, position.length * 2));
+				heap[size] = target;
+				position[target] = size + 1;
+				up(size++);
+			}
+
+			private int poll() {
+				int top = heap[0];
+				remove(top);
+				return top;
+			}
+
+			/**
+			 * @return whether the target was in this heap
+			 */
+			private boolean remove(int target) {
+				if (!contains(target)) return false;
+				int i = position[target] - 1;
+				position[target] = 0;
+				if (--size == i) return true;
+
+				heap[i] = heap[size];
+				position[heap[i]] = i + 1;
+				up(i);
+				down(i);
+				return true;
+			}
+
+			private boolean above(int a, int b) {
+				return worstFirst ? better(b, a) : better(a, b);
+			}
+
+			private void up(int i) {
+				while (i > 0) {
+					int parent = (i - 1) >>> 1;
+					if (!above(heap[i], heap[parent])) break;
+					swap(i, parent);
+					i = parent;
+				}
+			}
+
+			private void down(int i) {
+				while (true) {
+					int child = i * 2 + 1;
+					if (child >= size) break;
+					if (child + 1 < size && above(heap[child + 1], heap[child])) child++;
+					if (!above(heap[child], heap[i])) break;
+					swap(i, child);
+					i = child;
+				}
+			}
+
+			private void swap(int a, int b) {
+				int t = heap[a];
+				heap[a] = heap[b];
+				heap[b] = t;
+				position[heap[a]] = a + 1;
+				position[heap[b]] = b + 1;
+			}
+		}
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ * TabListHide - Hide or show players in the tab player list
+ * Copyright (C) 2017 pgmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.pgmann.tablisthide;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A hashed timing wheel holding delayed tasks, advanced by one slot each tick.
+ * <p>
+ * Tasks may be scheduled from any thread but always run on the thread calling {@link #tick()}.
+ * Scheduling a task with the same key as one which is still waiting does nothing.
+ *
+ * @author pgmann
+ */
+public class TimingWheel {
+	private static final int SIZE = 64; // Must be a power of 2
+
+	@SuppressWarnings("unchecked")
+	private List<Entry>[] buckets = new List[SIZE];
+	private long ticks = 0;
+
+	// Tasks scheduled since the last tick, and all waiting tasks by key
+	private Queue<Entry> incoming = new ConcurrentLinkedQueue<Entry>();
+	private ConcurrentMap<Object, Entry> waiting = new ConcurrentHashMap<Object, Entry>();
+
+	// Waiting tasks brought forward to the next tick
+	private Queue<Entry> expedited = new ConcurrentLinkedQueue<Entry>();
+
+	public TimingWheel() {
+		for (int i = 0; i < SIZE; i++) buckets[i] = new ArrayList<Entry>();
+	}
+
+	/**
+	 * Run a task after a delay, unless a task with the same key is already waiting
+	 *
+	 * @param key identifies the task
+	 * @param delay the delay in ticks, at least 1
+	 * @param task the task to run
+	 * @return whether the task was scheduled
+	 */
+	public boolean schedule(Object key, int delay, Runnable task) {
+		Entry entry = new Entry(key, Math.max(1, delay), task);
+		if (waiting.putIfAbsent(key, entry) != null) return false;
+
+		incoming.add(entry);
+		return true;
+	}
+
+	/**
+	 * Run a waiting task on the next tick instead of after its full delay
+	 *
+	 * @param key identifies the task
+	 * @return whether a task was waiting
+	 */
+	public boolean expedite(Object key) {
+		Entry entry = waiting.remove(key);
+		if (entry == null) return false;
+
+		// Its place on the wheel is skipped, as it is no longer waiting
+		expedited.add(entry);
+		return true;
+	}
+
+	/**
+	 * Advance the wheel by one tick, running any tasks which are due
+	 */
+	public void tick() {
+		// Place new tasks on the wheel
+		Entry entry;
+		while ((entry = incoming.poll()) != null) {
+			long due = ticks + entry.delay;
+			entry.rounds = (entry.delay - 1) / SIZE;
+			buckets[(int) (due & (SIZE - 1))].add(entry);
+		}
+
+		ticks++;
+		List<Entry> bucket = buckets[(int) (ticks & (SIZE - 1))];
+		if (bucket.isEmpty() && expedited.isEmpty()) return;
+
+		List<Entry> due = new ArrayList<Entry>();
+		while ((entry = expedited.poll()) != null) due.add(entry);
+		for (Iterator<Entry> it = bucket.iterator(); it.hasNext();) {
+			entry = it.next();
+			if (entry.rounds-- > 0) continue;
+			it.remove();
+
+			// Skip tasks which were expedited, and have already run
+			if (waiting.remove(entry.key, entry)) due.add(entry);
+		}
+
+		// Run after the bucket has been updated, as tasks may schedule further tasks
+		for (Entry task : due) task.task.run();
+	}
+
+	private static class Entry {
+		private Object key;
+		private int delay;
+		private int rounds;
+		private Runnable task;
+
+		private Entry(Object key, int delay, Runnable task) {
+			this.key = key;
+			this.delay = delay;
+			this.task = task;
+		}
+	}
+}
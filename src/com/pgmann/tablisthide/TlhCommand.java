@@ -18,11 +18,13 @@
 
 package com.pgmann.tablisthide;
 
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
-import org.apache.commons.lang.WordUtils;
 import org.bukkit.Bukkit;
 import org.bukkit.ChatColor;
 import org.bukkit.command.Command;
@@ -30,17 +32,57 @@ import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
 
-@SuppressWarnings({ "unused" })
 public class TlhCommand implements CommandExecutor {
 
+	/**
+	 * A subcommand, run with the same arguments as the main command
+	 */
+	private interface Subcommand {
+		public void execute(CommandSender sender, Command command, String label, String[] args);
+	}
+
 	private TabListHide p = null;
-	private ArrayList<String> commands = new ArrayList<String>();
+	private Map<String, Subcommand> commands = new HashMap<String, Subcommand>();
 
 	public TlhCommand(TabListHide p) {
 		this.p = p;
 
-		commands.add("show");
-		commands.add("hide");
+		commands.put("show", new Subcommand() {
+			@Override
+			public void execute(CommandSender sender, Command command, String label, String[] args) {
+				doShow(sender, command, label, args);
+			}
+		});
+		commands.put("hide", new Subcommand() {
+			@Override
+			public void execute(CommandSender sender, Command command, String label, String[] args) {
+				doHide(sender, command, label, args);
+			}
+		});
+		commands.put("showall", new Subcommand() {
+			@Override
+			public void execute(CommandSender sender, Command command, String label, String[] args) {
+				doShowall(sender, command, label, args);
+			}
+		});
+		commands.put("hideall", new Subcommand() {
+			@Override
+			public void execute(CommandSender sender, Command command, String label, String[] args) {
+				doHideall(sender, command, label, args);
+			}
+		});
+		commands.put("reconcile", new Subcommand() {
+			@Override
+			public void execute(CommandSender sender, Command command, String label, String[] args) {
+				doReconcile(sender, command, label, args);
+			}
+		});
+		commands.put("stats", new Subcommand() {
+			@Override
+			public void execute(CommandSender sender, Command command, String label, String[] args) {
+				doStats(sender, command, label, args);
+			}
+		});
 	}
 
 	/**
@@ -53,7 +95,6 @@ public class TlhCommand implements CommandExecutor {
 	 * 
 	 * @author Amaury Carrade
 	 */
-	@SuppressWarnings("rawtypes")
 	@Override
 	public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
 		if (!command.getName().equalsIgnoreCase("tablisthide") && !command.getName().equalsIgnoreCase("tlh")) {
@@ -68,7 +109,8 @@ public class TlhCommand implements CommandExecutor {
 		String subcommandName = args[0].toLowerCase();
 
 		// First: subcommand existence.
-		if (!this.commands.contains(subcommandName)) {
+		Subcommand subcommand = this.commands.get(subcommandName);
+		if (subcommand == null) {
 			sender.sendMessage(p.colourise(TabListHide.prefix + ChatColor.DARK_RED + "Invalid command. Use "
 					+ ChatColor.RED + "/tlh help" + ChatColor.DARK_RED + " for a list of commands."));
 			return true;
@@ -80,24 +122,12 @@ public class TlhCommand implements CommandExecutor {
 			return true;
 		}
 
-		// Third: instantiation
+		// Third: execution
 		try {
-			Class<? extends TlhCommand> cl = this.getClass();
-			Class[] parametersTypes = new Class[] { CommandSender.class, Command.class, String.class, String[].class };
-
-			Method doMethod = cl.getDeclaredMethod("do" + WordUtils.capitalize(subcommandName), parametersTypes);
-
-			doMethod.invoke(this, new Object[] { sender, command, label, args });
-
-			return true;
-
-		} catch (NoSuchMethodException e) {
-			// Unknown method => unknown subcommand.
-			sender.sendMessage(p.colourise(TabListHide.prefix + ChatColor.DARK_RED + "Invalid command. Use "
-					+ ChatColor.RED + "/tlh help" + ChatColor.DARK_RED + " for a list of commands."));
+			subcommand.execute(sender, command, label, args);
 			return true;
 
-		} catch (SecurityException | IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
+		} catch (RuntimeException e) {
 			sender.sendMessage(p.colourise(TabListHide.prefix + ChatColor.DARK_RED
 					+ "An error occured, see console for details. This is probably a bug, please report it!"));
 			e.printStackTrace();
@@ -121,6 +151,20 @@ public class TlhCommand implements CommandExecutor {
 		if (isAllowed(sender, "hide".split(" ")))
 			sender.sendMessage(p.colourise(ChatColor.YELLOW + "/tlh hide [player] [silent]" + ChatColor.WHITE
 					+ ": Hides the specified player"));
+		if (isAllowed(sender, "showall".split(" ")))
+			sender.sendMessage(p.colourise(ChatColor.YELLOW + "/tlh showall <selector> [silent]" + ChatColor.WHITE
+					+ ": Shows all matching players"));
+		if (isAllowed(sender, "hideall".split(" ")))
+			sender.sendMessage(p.colourise(ChatColor.YELLOW + "/tlh hideall <selector> [silent]" + ChatColor.WHITE
+					+ ": Hides all matching players. Selectors: " + ChatColor.YELLOW + "*" + ChatColor.WHITE + ", "
+					+ ChatColor.YELLOW + "perm:<node>" + ChatColor.WHITE + ", " + ChatColor.YELLOW + "world:<name>"
+					+ ChatColor.WHITE + ", " + ChatColor.YELLOW + "match:<regex>"));
+		if (isAllowed(sender, "reconcile".split(" ")))
+			sender.sendMessage(p.colourise(ChatColor.YELLOW + "/tlh reconcile [player]" + ChatColor.WHITE
+					+ ": Resends the tab list of the specified player, or everyone"));
+		if (isAllowed(sender, "stats".split(" ")))
+			sender.sendMessage(p.colourise(ChatColor.YELLOW + "/tlh stats" + ChatColor.WHITE
+					+ ": Shows packet counts and timings"));
 	}
 
 	/**
@@ -155,6 +199,10 @@ public class TlhCommand implements CommandExecutor {
 
 			case "show":
 			case "hide":
+			case "showall":
+			case "hideall":
+			case "reconcile":
+			case "stats":
 				permission = "tablisthide.admin";
 				break;
 			default:
@@ -182,8 +230,16 @@ public class TlhCommand implements CommandExecutor {
 		switch (args[0]) {
 		case "show":
 		case "hide":
+		case "showall":
+		case "hideall":
 			message = "You can't change whether players are visible in the tab list!";
 			break;
+		case "reconcile":
+			message = "You can't resend tab lists!";
+			break;
+		case "stats":
+			message = "You can't view TabListHide's statistics!";
+			break;
 		}
 
 		sender.sendMessage(p.colourise(TabListHide.prefix + ChatColor.DARK_RED + message));
@@ -263,4 +319,150 @@ public class TlhCommand implements CommandExecutor {
 			else sender.sendMessage(TabListHide.prefix + ChatColor.RED + target.getDisplayName() + ChatColor.DARK_RED + " is already hidden!");
 		} else if(!success) sender.sendMessage(TabListHide.prefix + ChatColor.DARK_RED + "You are already hidden!");
 	}
+
+	/**
+	 * This command shows all players matching a selector.<br>
+	 * Usage: /tlh showall &lt;selector&gt; [silent]
+	 * 
+	 * @param sender
+	 * @param command
+	 * @param label
+	 * @param args
+	 */
+	private void doShowall(CommandSender sender, Command command, String label, String[] args) {
+		List<Player> targets = select(sender, args, "showall");
+		if (targets == null) return;
+		boolean silent = args.length > 2 && args[2].equalsIgnoreCase("true");
+
+		List<Player> changed = TabListHide.setPlayersVisible(targets, true, silent);
+		sender.sendMessage(TabListHide.prefix + ChatColor.YELLOW + changed.size() + ChatColor.WHITE + " of " + ChatColor.YELLOW + targets.size()
+				+ ChatColor.WHITE + " matching players are now visible in the tab list");
+	}
+
+	/**
+	 * This command hides all players matching a selector.<br>
+	 * Usage: /tlh hideall &lt;selector&gt; [silent]
+	 * 
+	 * @param sender
+	 * @param command
+	 * @param label
+	 * @param args
+	 */
+	private void doHideall(CommandSender sender, Command command, String label, String[] args) {
+		List<Player> targets = select(sender, args, "hideall");
+		if (targets == null) return;
+		boolean silent = args.length > 2 && args[2].equalsIgnoreCase("true");
+
+		List<Player> changed = TabListHide.setPlayersVisible(targets, false, silent);
+		sender.sendMessage(TabListHide.prefix + ChatColor.YELLOW + changed.size() + ChatColor.WHITE + " of " + ChatColor.YELLOW + targets.size()
+				+ ChatColor.WHITE + " matching players are now hidden from the tab list");
+	}
+
+	/**
+	 * This command resends the tab list of the player specified, or every player.<br>
+	 * Usage: /tlh reconcile [player]
+	 * 
+	 * @param sender
+	 * @param command
+	 * @param label
+	 * @param args
+	 */
+	private void doReconcile(CommandSender sender, Command command, String label, String[] args) {
+		List<Player> viewers = new ArrayList<Player>();
+
+		if (args.length > 1) {
+			// Specified from command argument
+			Player viewer = Bukkit.getPlayer(args[1]);
+			if (viewer == null) {
+				sender.sendMessage(TabListHide.prefix + ChatColor.DARK_RED + "No player called " + ChatColor.RED + args[1] + ChatColor.DARK_RED + " could be found!");
+				return;
+			}
+			viewers.add(viewer);
+		} else {
+			viewers.addAll(Bukkit.getOnlinePlayers());
+		}
+
+		int resent = 0;
+		for (Player viewer : viewers) resent += TabListHide.getInternals().reconcile(viewer);
+		sender.sendMessage(TabListHide.prefix + ChatColor.WHITE + "Resent " + ChatColor.YELLOW + resent + ChatColor.WHITE + " entries to "
+				+ ChatColor.YELLOW + viewers.size() + ChatColor.WHITE + " tab lists");
+	}
+
+	/**
+	 * This command shows the packet counts and timings.<br>
+	 * Usage: /tlh stats
+	 * 
+	 * @param sender
+	 * @param command
+	 * @param label
+	 * @param args
+	 */
+	private void doStats(CommandSender sender, Command command, String label, String[] args) {
+		sender.sendMessage(p.colourise("            ~~ " + TabListHide.rawPrefix + " stats ~~            "));
+		for (String line : TabListHide.getInternals().getMetrics().describe()) {
+			int split = line.indexOf(':');
+			sender.sendMessage(ChatColor.YELLOW + line.substring(0, split) + ChatColor.WHITE + line.substring(split));
+		}
+	}
+
+	/**
+	 * Find all online players matching the selector given as the second argument, in one pass:
+	 * <ul>
+	 * <li><code>*</code> - everyone</li>
+	 * <li><code>perm:&lt;node&gt;</code> - everyone with a permission</li>
+	 * <li><code>world:&lt;name&gt;</code> - everyone in a world</li>
+	 * <li><code>match:&lt;regex&gt;</code> - everyone whose name matches a pattern</li>
+	 * </ul>
+	 * 
+	 * @param sender the command sender, told about any errors
+	 * @param args the command arguments
+	 * @param subcommand the subcommand name, for the usage message
+	 * @return the matching players, or null if the selector was invalid
+	 */
+	private List<Player> select(CommandSender sender, String[] args, String subcommand) {
+		if (args.length < 2) {
+			sender.sendMessage("Usage: /tlh " + subcommand + " <*|perm:node|world:name|match:regex> [silent]");
+			return null;
+		}
+
+		String selector = args[1];
+		int split = selector.indexOf(':');
+		String type = split < 0 ? selector : selector.substring(0, split).toLowerCase();
+		String value = split < 0 ? "" : selector.substring(split + 1);
+
+		Pattern pattern = null;
+		if (type.equals("match")) {
+			try {
+				pattern = Pattern.compile(value, Pattern.CASE_INSENSITIVE);
+			} catch (PatternSyntaxException e) {
+				sender.sendMessage(TabListHide.prefix + ChatColor.RED + value + ChatColor.DARK_RED + " is not a valid pattern!");
+				return null;
+			}
+		} else if (type.equals("world") && Bukkit.getWorld(value) == null) {
+			sender.sendMessage(TabListHide.prefix + ChatColor.DARK_RED + "No world called " + ChatColor.RED + value + ChatColor.DARK_RED + " could be found!");
+			return null;
+		} else if (!type.equals("*") && !type.equals("perm") && !type.equals("world")) {
+			sender.sendMessage(TabListHide.prefix + ChatColor.RED + selector + ChatColor.DARK_RED + " is not a valid selector!");
+			return null;
+		}
+
+		List<Player> targets = new ArrayList<Player>();
+		for (Player player : Bukkit.getOnlinePlayers()) {
+			switch (type) {
+			case "perm":
+				if (player.hasPermission(value)) targets.add(player);
+				break;
+			case "world":
+				if (player.getWorld().getName().equalsIgnoreCase(value)) targets.add(player);
+				break;
+			case "match":
+				if (pattern.matcher(player.getName()).matches()) targets.add(player);
+				break;
+			default:
+				targets.add(player);
+				break;
+			}
+		}
+		return targets;
+	}
 }
@@ -18,34 +18,79 @@
 
 package com.pgmann.tablisthide;
 
+import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
+import org.bukkit.event.entity.EntityDamageByEntityEvent;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
 import org.bukkit.event.player.PlayerGameModeChangeEvent;
+import org.bukkit.event.player.PlayerInteractEntityEvent;
 import org.bukkit.event.player.PlayerJoinEvent;
-import org.bukkit.scheduler.BukkitRunnable;
+import org.bukkit.event.player.PlayerMoveEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.event.player.PlayerRespawnEvent;
+import org.bukkit.event.player.PlayerTeleportEvent;
 
 public class TlhListener implements Listener{
-	private TabListHide p;
-
-	protected TlhListener(TabListHide p) {
-		this.p=p;
+	@EventHandler(priority=EventPriority.LOWEST)
+	protected void onPlayerJoinEarly(PlayerJoinEvent e) {
+		// Track before any player info packets are sent
+		TabListHide.getInternals().trackPlayer(e.getPlayer());
 	}
 	
 	@EventHandler
 	protected void onPlayerJoin(PlayerJoinEvent e) {
-		if(e.getPlayer().hasPermission("tablisthide.hide")) {
-			TabListHide.setPlayerVisible(e.getPlayer(), false, false);
+		TabListHide.getRules().evaluate(e.getPlayer(), e.getPlayer().getGameMode(), VisibilityRules.Trigger.JOIN);
+	}
+	
+	@EventHandler(priority=EventPriority.MONITOR)
+	protected void onPlayerQuit(PlayerQuitEvent e) {
+		TabListHide.getRules().forget(e.getPlayer());
+		TabListHide.getInternals().untrackPlayer(e.getPlayer());
+	}
+	
+	@EventHandler(priority=EventPriority.MONITOR, ignoreCancelled=true)
+	protected void onPlayerDamage(EntityDamageByEntityEvent e) {
+		if(e.getEntity() instanceof Player && e.getDamager() instanceof Player) {
+			TabListHide.getInternals().interacted((Player) e.getDamager(), (Player) e.getEntity());
+		}
+	}
+	
+	@EventHandler(priority=EventPriority.MONITOR, ignoreCancelled=true)
+	protected void onPlayerInteractEntity(PlayerInteractEntityEvent e) {
+		if(e.getRightClicked() instanceof Player) {
+			TabListHide.getInternals().interacted(e.getPlayer(), (Player) e.getRightClicked());
 		}
 	}
 	
-	@EventHandler(ignoreCancelled=true)
-	protected void onPlayerGameModeChange(final PlayerGameModeChangeEvent e) {
+	@EventHandler(priority=EventPriority.MONITOR, ignoreCancelled=true)
+	protected void onPlayerMove(PlayerMoveEvent e) {
+		// Most moves stay in the same chunk, which the index checks first
+		TabListHide.getInternals().moveTo(e.getPlayer(), e.getTo());
+	}
+	
+	@EventHandler(priority=EventPriority.MONITOR, ignoreCancelled=true)
+	protected void onPlayerTeleport(PlayerTeleportEvent e) {
+		TabListHide.getInternals().moveTo(e.getPlayer(), e.getTo());
+	}
+	
+	@EventHandler(priority=EventPriority.MONITOR)
+	protected void onPlayerRespawn(PlayerRespawnEvent e) {
+		TabListHide.getInternals().moveTo(e.getPlayer(), e.getRespawnLocation());
+	}
+	
+	@EventHandler(priority=EventPriority.MONITOR)
+	protected void onPlayerChangedWorld(PlayerChangedWorldEvent e) {
+		TabListHide.getRules().evaluate(e.getPlayer(), e.getPlayer().getGameMode(), VisibilityRules.Trigger.WORLD);
+	}
+	
+	@EventHandler(priority=EventPriority.MONITOR, ignoreCancelled=true)
+	protected void onPlayerGameModeChange(PlayerGameModeChangeEvent e) {
+		TabListHide.getInternals().updateGameMode(e.getPlayer(), e.getNewGameMode());
+		TabListHide.getRules().evaluate(e.getPlayer(), e.getNewGameMode(), VisibilityRules.Trigger.GAMEMODE);
+		
 		// Run after the event has taken place to use new gamemode
-		new BukkitRunnable() {
-			@Override
-			public void run() {
-				TabListHide.getInternals().fixPlayer(e.getPlayer());
-			}
-		}.runTaskLater(p, 10);
+		TabListHide.getInternals().scheduleFix(e.getPlayer());
 	}
 }
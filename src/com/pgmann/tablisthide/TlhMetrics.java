@@ -0,0 +1,152 @@
+/*
+ * TabListHide - Hide or show players in the tab player list
+ * Copyright (C) 2017 pgmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.pgmann.tablisthide;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counts the packets TabListHide handles and times its hot paths, cheaply enough to leave on.
+ *
+ * @author pgmann
+ */
+public class TlhMetrics {
+	// Packets
+	protected final StripedCounter packetsRewritten = new StripedCounter();
+	protected final StripedCounter packetsGenerated = new StripedCounter();
+	protected final StripedCounter changesDropped = new StripedCounter();
+	protected final StripedCounter changesRedundant = new StripedCounter();
+	protected final StripedCounter removalsEarly = new StripedCounter();
+	protected final StripedCounter pingsFiltered = new StripedCounter();
+
+	// Load - whether work grows faster than the player count
+	protected final StripedCounter playersJoined = new StripedCounter();
+	protected final StripedCounter tickAllocatedBytes = new StripedCounter();
+
+	// Timings
+	protected final LatencyHistogram listener = new LatencyHistogram();
+	protected final LatencyHistogram hidePlayer = new LatencyHistogram();
+	protected final LatencyHistogram showPlayer = new LatencyHistogram();
+	protected final LatencyHistogram fixPlayer = new LatencyHistogram();
+	protected final LatencyHistogram sendInfoPacket = new LatencyHistogram();
+	protected final LatencyHistogram trackPlayer = new LatencyHistogram();
+	protected final LatencyHistogram tick = new LatencyHistogram();
+
+	// Bytes allocated by each thread, if the JVM can count them
+	private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	private final boolean countAllocations = threads instanceof com.sun.management.ThreadMXBean
+			&& ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()
+			&& ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemoryEnabled();
+	private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+	private Map<String, StripedCounter> counters = new LinkedHashMap<String, StripedCounter>();
+	private Map<String, LatencyHistogram> histograms = new LinkedHashMap<String, LatencyHistogram>();
+
+	protected TlhMetrics() {
+		counters.put("packets_rewritten", packetsRewritten);
+		counters.put("packets_generated", packetsGenerated);
+		counters.put("changes_dropped", changesDropped);
+		counters.put("changes_redundant", changesRedundant);
+		counters.put("removals_early", removalsEarly);
+		counters.put("pings_filtered", pingsFiltered);
+		counters.put("players_joined", playersJoined);
+		counters.put("tick_allocated_bytes", tickAllocatedBytes);
+
+		histograms.put("listener", listener);
+		histograms.put("hide_player", hidePlayer);
+		histograms.put("show_player", showPlayer);
+		histograms.put("fix_player", fixPlayer);
+		histograms.put("send_info_packet", sendInfoPacket);
+		histograms.put("track_player", trackPlayer);
+		histograms.put("tick", tick);
+	}
+
+	/**
+	 * Retrieve the bytes allocated by the current thread so far, to measure a section of work
+	 *
+	 * @return the bytes allocated, or 0 if the JVM can't count them
+	 */
+	protected long allocatedBytes() {
+		if (!countAllocations) return 0;
+		return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * Describe the metrics for the /tlh stats command
+	 *
+	 * @return one line per metric
+	 */
+	protected List<String> describe() {
+		List<String> lines = new ArrayList<String>();
+		for (Map.Entry<String, StripedCounter> counter : counters.entrySet()) {
+			lines.add(counter.getKey() + ": " + counter.getValue().sum());
+		}
+		for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+			LatencyHistogram histogram = entry.getValue();
+			lines.add(String.format("%s: %d calls, p50 %s, p99 %s, max %s", entry.getKey(), histogram.getCount(),
+					formatNanos(histogram.getPercentile(50)), formatNanos(histogram.getPercentile(99)), formatNanos(histogram.getMax())));
+		}
+
+		// Derived from the above - these should stay flat as more players join
+		long joined = playersJoined.sum();
+		long ticks = tick.getCount();
+		lines.add(String.format("packets_per_join: %.1f", joined > 0 ? (double) packetsGenerated.sum() / joined : 0));
+		lines.add(String.format("allocated_per_tick: %dKB", ticks > 0 ? tickAllocatedBytes.sum() / ticks / 1024 : 0));
+		lines.add("heap_used: " + memory.getHeapMemoryUsage().getUsed() / (1024 * 1024) + "MB");
+		return lines;
+	}
+
+	/**
+	 * Write the metrics in the Prometheus text format
+	 *
+	 * @return the metrics text
+	 */
+	protected String toPrometheus() {
+		StringBuilder out = new StringBuilder();
+		for (Map.Entry<String, StripedCounter> counter : counters.entrySet()) {
+			String name = "tablisthide_" + counter.getKey() + "_total";
+			out.append("# TYPE ").append(name).append(" counter\n");
+			out.append(name).append(' ').append(counter.getValue().sum()).append('\n');
+		}
+		for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+			String name = "tablisthide_" + entry.getKey() + "_seconds";
+			LatencyHistogram histogram = entry.getValue();
+			out.append("# TYPE ").append(name).append(" summary\n");
+			for (double quantile : new double[] { 0.5, 0.9, 0.99, 0.999 }) {
+				out.append(name).append("{quantile=\"").append(quantile).append("\"} ").append(histogram.getPercentile(quantile * 100) / 1e9).append('\n');
+			}
+			out.append(name).append("_sum ").append(histogram.getTotal() / 1e9).append('\n');
+			out.append(name).append("_count ").append(histogram.getCount()).append('\n');
+		}
+		out.append("# TYPE tablisthide_heap_used_bytes gauge\n");
+		out.append("tablisthide_heap_used_bytes ").append(memory.getHeapMemoryUsage().getUsed()).append('\n');
+		return out.toString();
+	}
+
+	private static String formatNanos(long nanos) {
+		if (nanos < 10000) return nanos + "ns";
+		if (nanos < 10000000) return nanos / 1000 + "us";
+		return nanos / 1000000 + "ms";
+	}
+}
@@ -0,0 +1,323 @@
+/*
+ * TabListHide - Hide or show players in the tab player list
+ * Copyright (C) 2017 pgmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.pgmann.tablisthide;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * An open-addressing set of UUIDs, stored as two longs each with no boxing.
+ * <p>
+ * UUIDs are spread by hash over segments, each its own table of a few hundred UUIDs. A {@link #copy()}
+ * shares every segment with the original until one of them changes it, so copying a large set
+ * to change one UUID only copies the segment holding it.
+ * <p>
+ * Not thread safe - share it by publishing a {@link #copy()} instead of modifying it in place.
+ *
+ * @author pgmann
+ */
+public class UuidSet {
+	private static final int MIN_CAPACITY = 16;
+
+	// Segments are split in two once they average this many UUIDs
+	private static final int SEGMENT_SIZE = 256;
+
+	// Each segment holds pairs of most and least significant bits, (0, 0) marks an empty slot
+	private long[][] segments;
+	private int[] sizes;
+	// Whether this set may change a segment in place, or must copy it first as another set shares it
+	private boolean[] owned;
+	private int size;
+	private boolean containsNil;
+
+	public UuidSet() {
+		this(0);
+	}
+
+	/**
+	 * Create a set sized for the expected number of UUIDs
+	 *
+	 * @param expected the expected number of UUIDs
+	 */
+	public UuidSet(int expected) {
+		int count = 1;
+		while (count * SEGMENT_SIZE < expected) count <<= 1;
+		int capacity = MIN_CAPACITY;
+		while (capacity < expected / count * 2) capacity <<= 1;
+		allocate(count, capacity);
+	}
+
+	private UuidSet(UuidSet source) {
+		segments = source.segments.clone();
+		sizes = source.sizes.clone();
+		owned = new boolean[segments.length];
+		size = source.size;
+		containsNil = source.containsNil;
+
+		// Neither set may change the segments in place any more
+		Arrays.fill(source.owned, false);
+	}
+
+	/**
+	 * Check if a UUID is in the set
+	 *
+	 * @param uuid the UUID to look for
+	 * @return whether the UUID is present
+	 */
+	public boolean contains(UUID uuid) {
+		return contains(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+	}
+
+	/**
+	 * Check if a UUID is in the set
+	 *
+	 * @param msb the most significant bits of the UUID
+	 * @param lsb the least significant bits of the UUID
+	 * @return whether the UUID is present
+	 */
+	public boolean contains(long msb, long lsb) {
+		// Fast path - most lookups are for UUIDs which aren't present, and each segment is at most half full
+		// so the probe usually ends at the first empty slot
+		if (size == 0) return false;
+		if (msb == 0 && lsb == 0) return containsNil;
+
+		long hash = hash(msb, lsb);
+		long[] table = segments[segment(hash)];
+		int mask = (table.length >> 1) - 1;
+		for (int i = (int) hash & mask;; i = (i + 1) & mask) {
+			long m = table[i * 2], l = table[i * 2 + 1];
+			if (m == msb && l == lsb) return true;
+			if (m == 0 && l == 0) return false;
+		}
+	}
+
+	/**
+	 * Add a UUID to the set
+	 *
+	 * @param uuid the UUID to add
+	 * @return whether the set changed
+	 */
+	public boolean add(UUID uuid) {
+		return add(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+	}
+
+	/**
+	 * Add a UUID to the set
+	 *
+	 * @param msb the most significant bits of the UUID
+	 * @param lsb the least significant bits of the UUID
+	 * @return whether the set changed
+	 */
+	public boolean add(long msb, long lsb) {
+		if (msb == 0 && lsb == 0) {
+			if (containsNil) return false;
+			containsNil = true;
+			size++;
+			return true;
+		}
+
+		long hash = hash(msb, lsb);
+		int segment = segment(hash);
+		long[] table = segments[segment];
+		int mask = (table.length >> 1) - 1;
+		int i = (int) hash & mask;
+		for (;; i = (i + 1) & mask) {
+			long m = table[i * 2], l = table[i * 2 + 1];
+			if (m == msb && l == lsb) return false;
+			if (m == 0 && l == 0) break;
+		}
+
+		table = writable(segment);
+		table[i * 2] = msb;
+		table[i * 2 + 1] = lsb;
+		size++;
+		if (++sizes[segment] * 2 > mask + 1) segments[segment] = resize(table, (mask + 1) * 2);
+		if (size > segments.length * SEGMENT_SIZE) split();
+		return true;
+	}
+
+	/**
+	 * Remove a UUID from the set
+	 *
+	 * @param uuid the UUID to remove
+	 * @return whether the set changed
+	 */
+	public boolean remove(UUID uuid) {
+		return remove(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+	}
+
+	/**
+	 * Remove a UUID from the set
+	 *
+	 * @param msb the most significant bits of the UUID
+	 * @param lsb the least significant bits of the UUID
+	 * @return whether the set changed
+	 */
+	public boolean remove(long msb, long lsb) {
+		if (msb == 0 && lsb == 0) {
+			if (!containsNil) return false;
+			containsNil = false;
+			size--;
+			return true;
+		}
+
+		long hash = hash(msb, lsb);
+		int segment = segment(hash);
+		long[] table = segments[segment];
+		int mask = (table.length >> 1) - 1;
+		int i = (int) hash & mask;
+		for (;; i = (i + 1) & mask) {
+			long m = table[i * 2], l = table[i * 2 + 1];
+			if (m == msb && l == lsb) break;
+			if (m == 0 && l == 0) return false;
+		}
+
+		// Shift back any following entries which would no longer be reachable
+		table = writable(segment);
+		for (int j = (i + 1) & mask;; j = (j + 1) & mask) {
+			long m = table[j * 2], l = table[j * 2 + 1];
+			if (m == 0 && l == 0) break;
+			int home = (int) hash(m, l) & mask;
+			if (((j - home) & mask) >= ((j - i) & mask)) {
+				table[i * 2] = m;
+				table[i * 2 + 1] = l;
+				i = j;
+			}
+		}
+		table[i * 2] = 0;
+		table[i * 2 + 1] = 0;
+		sizes[segment]--;
+		size--;
+		return true;
+	}
+
+	/**
+	 * @return the number of UUIDs in the set
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return whether the set is empty
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Create an independent copy of this set. Segments are shared until either set changes them.
+	 *
+	 * @return the copy
+	 */
+	public UuidSet copy() {
+		return new UuidSet(this);
+	}
+
+	/**
+	 * Retrieve all UUIDs in the set
+	 *
+	 * @return a new list of the UUIDs
+	 */
+	public List<UUID> toList() {
+		List<UUID> list = new ArrayList<UUID>(size);
+		if (containsNil) list.add(new UUID(0, 0));
+		for (long[] table : segments) {
+			for (int i = 0; i < table.length; i += 2) {
+				if (table[i] != 0 || table[i + 1] != 0) list.add(new UUID(table[i], table[i + 1]));
+			}
+		}
+		return list;
+	}
+
+	private void allocate(int count, int capacity) {
+		segments = new long[count][];
+		for (int i = 0; i < count; i++) segments[i] = new long[capacity * 2];
+		sizes = new int[count];
+		owned = new boolean[count];
+		Arrays.fill(owned, true);
+	}
+
+	/**
+	 * Retrieve a segment to change, copying it first if it's shared
+	 */
+	private long[] writable(int segment) {
+		if (!owned[segment]) {
+			segments[segment] = segments[segment].clone();
+			owned[segment] = true;
+		}
+		return segments[segment];
+	}
+
+	/**
+	 * Double the number of segments, moving every UUID into new ones
+	 */
+	private void split() {
+		long[][] old = segments;
+		allocate(old.length * 2, SEGMENT_SIZE * 2);
+		for (long[] table : old) {
+			for (int i = 0; i < table.length; i += 2) {
+				long m = table[i], l = table[i + 1];
+				if (m == 0 && l == 0) continue;
+
+				long hash = hash(m, l);
+				int segment = segment(hash);
+				long[] target = segments[segment];
+				int mask = (target.length >> 1) - 1;
+				int j = (int) hash & mask;
+				while (target[j * 2] != 0 || target[j * 2 + 1] != 0) j = (j + 1) & mask;
+				target[j * 2] = m;
+				target[j * 2 + 1] = l;
+				if (++sizes[segment] * 2 > mask + 1) segments[segment] = resize(target, (mask + 1) * 2);
+			}
+		}
+	}
+
+	private static long[] resize(long[] old, int capacity) {
+		long[] table = new long[capacity * 2];
+		int mask = capacity - 1;
+		for (int i = 0; i < old.length; i += 2) {
+			long m = old[i], l = old[i + 1];
+			if (m == 0 && l == 0) continue;
+			int j = (int) hash(m, l) & mask;
+			while (table[j * 2] != 0 || table[j * 2 + 1] != 0) j = (j + 1) & mask;
+			table[j * 2] = m;
+			table[j * 2 + 1] = l;
+		}
+		return table;
+	}
+
+	private int segment(long hash) {
+		// High bits, so the segment is independent of the slot within it
+		return (int) (hash >>> 40) & (segments.length - 1);
+	}
+
+	private static long hash(long msb, long lsb) {
+		// MurmurHash3 finaliser
+		long h = msb * 31 + lsb;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ * TabListHide - Hide or show players in the tab player list
+ * Copyright (C) 2017 pgmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.pgmann.tablisthide;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A flag for each (viewer, target) pair of player slots, stored as one bitset row per viewer.
+ * <p>
+ * Each word of a row is updated atomically, so reads never need to lock and a change doesn't
+ * copy anything. A row, or the array of rows, is only copied when it has to grow.
+ *
+ * @author pgmann
+ * @see PlayerSlots
+ */
+public class VisibilityMatrix {
+	private static final AtomicLongArray EMPTY_ROW = new AtomicLongArray(0);
+
+	private volatile AtomicReferenceArray<AtomicLongArray> rows = new AtomicReferenceArray<AtomicLongArray>(0);
+
+	/**
+	 * Check the flag for a pair of slots
+	 *
+	 * @param viewer the viewer's slot
+	 * @param target the target's slot
+	 * @return whether the flag is set
+	 */
+	public boolean get(int viewer, int target) {
+		if (viewer < 0 || target < 0) return false;
+		AtomicReferenceArray<AtomicLongArray> rows = this.rows;
+		if (viewer >= rows.length()) return false;
+
+		AtomicLongArray row = rows.get(viewer);
+		int word = target >>> 6;
+		return word < row.length() && (row.get(word) & (1L << target)) != 0;
+	}
+
+	/**
+	 * Change the flag for a pair of slots
+	 *
+	 * @param viewer the viewer's slot
+	 * @param target the target's slot
+	 * @param value the new value of the flag
+	 * @return if anything changed
+	 */
+	public synchronized boolean set(int viewer, int target, boolean value) {
+		if (viewer < 0 || target < 0 || get(viewer, target) == value) return false;
+
+		if (viewer >= rows.length()) growRows(viewer + 1);
+		AtomicLongArray row = rows.get(viewer);
+		int word = target >>> 6;
+		if (word >= row.length()) row = growRow(viewer, word + 1);
+
+		// Writers hold the lock, so a plain read and write of the word can't lose an update
+		if (value) row.set(word, row.get(word) | 1L << target);
+		else row.set(word, row.get(word) & ~(1L << target));
+		return true;
+	}
+
+	/**
+	 * Clear every flag involving a slot, as a viewer or a target
+	 *
+	 * @param slot the slot to clear
+	 */
+	public synchronized void clear(int slot) {
+		if (slot < 0) return;
+		AtomicReferenceArray<AtomicLongArray> rows = this.rows;
+
+		if (slot < rows.length()) rows.set(slot, EMPTY_ROW);
+		int word = slot >>> 6;
+		for (int i = 0; i < rows.length(); i++) {
+			AtomicLongArray row = rows.get(i);
+			if (word < row.length()) row.set(word, row.get(word) & ~(1L << slot));
+		}
+	}
+
+	/**
+	 * Make room for more viewers, doubling so growing is rare. Only called while locked.
+	 */
+	private void growRows(int length) {
+		AtomicReferenceArray<AtomicLongArray> old = rows;
+		AtomicReferenceArray<AtomicLongArray> grown = new AtomicReferenceArray<AtomicLongArray>(Math.max(length, old.length() * 2));
+		for (int i = 0; i < grown.length(); i++) grown.set(i, i < old.length() ? old.get(i) : EMPTY_ROW);
+		rows = grown;
+	}
+
+	/**
+	 * Make room for more targets in a viewer's row, doubling so growing is rare. Only called while locked.
+	 */
+	private AtomicLongArray growRow(int viewer, int length) {
+		AtomicLongArray old = rows.get(viewer);
+		AtomicLongArray grown = new AtomicLongArray(Math.max(length, old.length() * 2));
+		for (int i = 0; i < old.length(); i++) grown.set(i, old.get(i));
+		rows.set(viewer, grown);
+		return grown;
+	}
+}
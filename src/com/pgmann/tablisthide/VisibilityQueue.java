@@ -0,0 +1,82 @@
+/*
+ * TabListHide - Hide or show players in the tab player list
+ * Copyright (C) 2017 pgmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.pgmann.tablisthide;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Visibility work waiting to be done on the main thread, run in priority order
+ * within a time budget each tick. Work left over carries on next tick.
+ * <p>
+ * Not thread safe - only use it from the main thread.
+ *
+ * @author pgmann
+ */
+public class VisibilityQueue {
+	/**
+	 * The order work is done in
+	 */
+	public enum Priority {
+		/** Spectators being added to their own tab list */
+		FIX,
+		/** Players being removed from tab lists */
+		REMOVE,
+		/** Players being added to tab lists */
+		ADD
+	}
+
+	@SuppressWarnings("unchecked")
+	private Queue<Runnable>[] queues = new Queue[Priority.values().length];
+
+	public VisibilityQueue() {
+		for (int i = 0; i < queues.length; i++) queues[i] = new ArrayDeque<Runnable>();
+	}
+
+	/**
+	 * Add work to the queue
+	 *
+	 * @param priority the priority of the work
+	 * @param task the work to do
+	 */
+	public void offer(Priority priority, Runnable task) {
+		queues[priority.ordinal()].add(task);
+	}
+
+	/**
+	 * Do queued work until the budget runs out. At least one task is always run.
+	 *
+	 * @param budgetNanos the time budget in nanoseconds
+	 * @return the number of tasks run
+	 */
+	public int drain(long budgetNanos) {
+		long deadline = System.nanoTime() + budgetNanos;
+		int run = 0;
+
+		for (Queue<Runnable> queue : queues) {
+			Runnable task;
+			while ((task = queue.poll()) != null) {
+				task.run();
+				run++;
+				if (System.nanoTime() - deadline >= 0) return run;
+			}
+		}
+		return run;
+	}
+}
@@ -0,0 +1,305 @@
+/*
+ * TabListHide - Hide or show players in the tab player list
+ * Copyright (C) 2017 pgmann
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.pgmann.tablisthide;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import org.bukkit.GameMode;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.entity.Player;
+import org.bukkit.metadata.MetadataValue;
+import org.bukkit.scoreboard.Team;
+
+/**
+ * Hides players automatically according to rules in config.yml. A player is hidden while any rule matches them,
+ * and a rule matches when all of its conditions do.
+ * <p>
+ * Each player's results are cached as a bitset, one bit per rule. When something changes, only the rules with a
+ * condition depending on it are evaluated again, and only for the player it changed for.
+ *
+ * @author pgmann
+ */
+public class VisibilityRules {
+	// One bit per rule in the cached results
+	private static final int MAX_RULES = 64;
+
+	/**
+	 * Something which may change whether a player matches a rule
+	 */
+	public enum Trigger {
+		JOIN, WORLD, GAMEMODE, PERMISSION, TEAM, METADATA
+	}
+
+	/**
+	 * A compiled condition
+	 */
+	private interface Condition {
+		public boolean matches(Player player, GameMode gameMode);
+	}
+
+	private Condition[][] rules;
+
+	// The rules depending on each trigger, as a bitset
+	private long[] dependents = new long[Trigger.values().length];
+	private long all;
+
+	// Cached results - only used on the main thread
+	private Map<UUID, Long> matches = new HashMap<UUID, Long>();
+
+	// The players these rules hid, kept after they leave so they are shown on joining if they no longer match
+	// Replaced by a modified copy on each change, as the store may still be writing the previous one
+	private UuidSet ruleHidden = new UuidSet();
+	private HiddenStore store;
+
+	/**
+	 * Compile the rules in a configuration section. Invalid rules are logged and skipped.
+	 *
+	 * @param section the rules section, or null for the default rule
+	 * @param logger the logger to report invalid rules to
+	 */
+	public VisibilityRules(ConfigurationSection section, Logger logger) {
+		List<Condition[]> rules = new ArrayList<Condition[]>();
+
+		if (section == null) {
+			// The behaviour before rules existed
+			rules.add(new Condition[] { permission("tablisthide.hide") });
+			dependents[Trigger.PERMISSION.ordinal()] = 1;
+		} else {
+			for (String name : section.getKeys(false)) {
+				if (rules.size() == MAX_RULES) {
+					logger.warning("Only the first " + MAX_RULES + " rules are used, ignoring " + name);
+					continue;
+				}
+				Condition[] rule = compile(section.getConfigurationSection(name), name, rules.size(), logger);
+				if (rule == null) continue;
+				rules.add(rule);
+			}
+		}
+
+		this.rules = rules.toArray(new Condition[rules.size()][]);
+		this.all = rules.size() == MAX_RULES ? -1L : (1L << rules.size()) - 1;
+		dependents[Trigger.JOIN.ordinal()] = all;
+	}
+
+	/**
+	 * Compile a single rule, recording which triggers it depends on
+	 *
+	 * @return the rule's conditions, or null if it is invalid
+	 */
+	private Condition[] compile(ConfigurationSection rule, String name, int index, Logger logger) {
+		if (rule == null) {
+			logger.warning("Rule " + name + " must be a section of conditions, ignoring it");
+			return null;
+		}
+
+		List<Condition> conditions = new ArrayList<Condition>();
+		Set<Trigger> triggers = EnumSet.noneOf(Trigger.class);
+		for (String key : rule.getKeys(false)) {
+			List<String> values = rule.isList(key) ? rule.getStringList(key) : Collections.singletonList(rule.getString(key));
+			switch (key) {
+			case "permission":
+				for (String value : values) conditions.add(permission(value));
+				triggers.add(Trigger.PERMISSION);
+				break;
+			case "world":
+				conditions.add(world(new HashSet<String>(values)));
+				triggers.add(Trigger.WORLD);
+				break;
+			case "gamemode":
+				Set<GameMode> gameModes = EnumSet.noneOf(GameMode.class);
+				for (String value : values) {
+					try {
+						gameModes.add(GameMode.valueOf(value.toUpperCase()));
+					} catch (IllegalArgumentException e) {
+						logger.warning("Rule " + name + " has an unknown game mode " + value + ", ignoring the rule");
+						return null;
+					}
+				}
+				conditions.add(gameMode(gameModes));
+				triggers.add(Trigger.GAMEMODE);
+				break;
+			case "team":
+				conditions.add(team(new HashSet<String>(values)));
+				triggers.add(Trigger.TEAM);
+				break;
+			case "metadata":
+				for (String value : values) conditions.add(metadata(value));
+				triggers.add(Trigger.METADATA);
+				break;
+			default:
+				logger.warning("Rule " + name + " has an unknown condition " + key + ", ignoring the rule");
+				return null;
+			}
+		}
+
+		if (conditions.isEmpty()) {
+			logger.warning("Rule " + name + " has no conditions, ignoring it");
+			return null;
+		}
+		for (Trigger trigger : triggers) dependents[trigger.ordinal()] |= 1L << index;
+		return conditions.toArray(new Condition[conditions.size()]);
+	}
+
+	/**
+	 * Evaluate the rules depending on a trigger for a player, hiding or showing them if the result changed.
+	 * On {@link Trigger#JOIN} every rule is evaluated, and matching players are hidden.
+	 *
+	 * @param player the player to evaluate
+	 * @param gameMode the player's game mode, which may not have taken effect yet
+	 * @param trigger what changed
+	 */
+	protected void evaluate(Player player, GameMode gameMode, Trigger trigger) {
+		// Still check joining players with no rules left, as a rule may have hidden them before it was removed
+		long affected = dependents[trigger.ordinal()];
+		if (affected == 0 && trigger != Trigger.JOIN) return;
+
+		UUID uuid = player.getUniqueId();
+		Long cached = matches.get(uuid);
+		long before = cached != null ? cached : 0;
+		long after = before & ~affected;
+		for (long bits = affected; bits != 0; bits &= bits - 1) {
+			int rule = Long.numberOfTrailingZeros(bits);
+			if (matches(rules[rule], player, gameMode)) after |= 1L << rule;
+		}
+		matches.put(uuid, after);
+
+		if (after != 0 && (before == 0 || trigger == Trigger.JOIN)) {
+			// Players already hidden by a command stay theirs, so they aren't shown once the rule stops matching
+			if (ruleHidden.contains(uuid) || TabListHide.isPlayerVisible(player)) {
+				setRuleHidden(uuid, true);
+				TabListHide.setPlayerVisible(player, false, false);
+			}
+		} else if (after == 0 && setRuleHidden(uuid, false)) {
+			// Only show players these rules hid, not those hidden by a command - even if they hid them before the player last left
+			TabListHide.setPlayerVisible(player, true, false);
+		}
+	}
+
+	/**
+	 * Load the players these rules hid from a store, and save any further changes to it.
+	 * Needed whenever hidden players are saved, or players hidden by a rule would stay hidden after a restart.
+	 *
+	 * @param store the store to use
+	 */
+	protected void persist(HiddenStore store) {
+		ruleHidden = store.load();
+		this.store = store;
+	}
+
+	/**
+	 * Forget a player's cached results once they have left. Whether these rules hid them is kept.
+	 *
+	 * @param player the player who left
+	 */
+	protected void forget(Player player) {
+		matches.remove(player.getUniqueId());
+	}
+
+	/**
+	 * Finish saving and close the store, if any
+	 */
+	protected void close() {
+		if (store != null) {
+			store.close();
+			store = null;
+		}
+	}
+
+	/**
+	 * Record whether these rules hid a player
+	 *
+	 * @return if anything changed
+	 */
+	private boolean setRuleHidden(UUID uuid, boolean hidden) {
+		if (ruleHidden.contains(uuid) == hidden) return false;
+
+		UuidSet updated = ruleHidden.copy();
+		if (hidden) updated.add(uuid);
+		else updated.remove(uuid);
+		ruleHidden = updated;
+
+		if (store != null) store.append(uuid, hidden, updated);
+		return true;
+	}
+
+	private static boolean matches(Condition[] rule, Player player, GameMode gameMode) {
+		for (Condition condition : rule) {
+			if (!condition.matches(player, gameMode)) return false;
+		}
+		return true;
+	}
+
+	private static Condition permission(final String node) {
+		return new Condition() {
+			@Override
+			public boolean matches(Player player, GameMode gameMode) {
+				return player.hasPermission(node);
+			}
+		};
+	}
+
+	private static Condition world(final Set<String> worlds) {
+		return new Condition() {
+			@Override
+			public boolean matches(Player player, GameMode gameMode) {
+				return worlds.contains(player.getWorld().getName());
+			}
+		};
+	}
+
+	private static Condition gameMode(final Set<GameMode> gameModes) {
+		return new Condition() {
+			@Override
+			public boolean matches(Player player, GameMode gameMode) {
+				return gameModes.contains(gameMode);
+			}
+		};
+	}
+
+	private static Condition team(final Set<String> teams) {
+		return new Condition() {
+			@Override
+			public boolean matches(Player player, GameMode gameMode) {
+				Team team = player.getScoreboard().getPlayerTeam(player);
+				return team != null && teams.contains(team.getName());
+			}
+		};
+	}
+
+	private static Condition metadata(final String key) {
+		return new Condition() {
+			@Override
+			public boolean matches(Player player, GameMode gameMode) {
+				for (MetadataValue value : player.getMetadata(key)) {
+					if (value.asBoolean()) return true;
+				}
+				return false;
+			}
+		};
+	}
+}